@@ -0,0 +1,25 @@
+package top.xiaohuashifu.filesystem.directory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 描述: 目录加载器，在第一次访问目录节点的子节点时从磁盘读取目录内容
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-09 16:40
+ */
+public interface DirectoryLoader {
+
+    /**
+     * 读取一个目录下的所有文件，生成子节点
+     * 子节点的父节点必须是该目录节点，子节点由目录树添加到目录里
+     *
+     * @param directory 目录节点
+     * @return 目录下的子节点列表
+     * @throws IOException IO错误，交给上一层处理
+     */
+    List<DirectoryTree.Node> load(DirectoryTree.Node directory) throws IOException;
+
+}
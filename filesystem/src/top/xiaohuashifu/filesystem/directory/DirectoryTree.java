@@ -2,14 +2,33 @@ package top.xiaohuashifu.filesystem.directory;
 
 import top.xiaohuashifu.filesystem.exception.NotFoundException;
 import top.xiaohuashifu.filesystem.file.File;
+import top.xiaohuashifu.filesystem.file.FileAttribute;
 import top.xiaohuashifu.filesystem.file.FileConstant;
 import top.xiaohuashifu.filesystem.file.FileSupporter;
+import top.xiaohuashifu.filesystem.util.PathUtils;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 描述: 目录树
+ * 每个目录节点都有一个文件名到子节点的散列索引，解析路径时每一层只需要一次散列查找，且不创建任何对象
+ * 解析过的路径放在一个有容量上限的路径缓存里，不存在的路径也会缓存，缓存满时淘汰任意一项
+ * 添加、删除和重命名节点时使该路径及其子路径的缓存失效，重命名必须通过renameNode()，不能直接调用Node.setFile()
+ * 设置了目录加载器时，目录的内容在第一次访问子节点时才加载，可以用startWarmUp()在后台线程预先加载整棵树
+ * 修改和加载目录节点的子节点时会锁住该目录节点，散列索引修改时整体替换，所以解析路径和读路径缓存都不加锁
+ * 每个节点还有一个读写锁，由使用者用来保护文件内容和目录的文件项，目录树本身不使用它
  *
  * @author xhsf
  * @email 827032783@qq.com
@@ -27,13 +46,70 @@ public class DirectoryTree {
      */
     private static final String ROOT_PATH = "/";
 
+    /**
+     * 路径缓存的默认容量
+     */
+    public static final int DEFAULT_PATH_CACHE_CAPACITY = 256;
+
     /**
      * 根目录
      */
     private Node root;
 
+    /**
+     * 一个目录的最大文件数，由目录磁盘块能存放的文件项数量决定
+     */
+    private final int maxFileNumberOfDirectory;
+
+    /**
+     * 路径缓存的容量，为0时不使用路径缓存
+     */
+    private final int pathCacheCapacity;
+
+    /**
+     * 路径缓存，键是规范化的路径，值为NOT_EXIST表示该路径不存在
+     */
+    private final Map<String, Node> pathCache;
+
+    /**
+     * 路径缓存里表示路径不存在的值
+     */
+    private static final Node NOT_EXIST = new Node(null, null,
+            new File("", "", new FileAttribute(false, false, false, false), -1, 0));
+
+    /**
+     * 路径缓存失效的次数，解析路径期间发生过失效时，解析的结果不能留在缓存里
+     */
+    private final AtomicInteger invalidateCount = new AtomicInteger();
+
     public DirectoryTree(File rootFile) {
+        this(rootFile, FileConstant.MAX_FILE_NUMBER_OF_DIRECTORY);
+    }
+
+    public DirectoryTree(File rootFile, int maxFileNumberOfDirectory) {
+        this(rootFile, maxFileNumberOfDirectory, DEFAULT_PATH_CACHE_CAPACITY);
+    }
+
+    public DirectoryTree(File rootFile, int maxFileNumberOfDirectory, int pathCacheCapacity) {
+        this(rootFile, maxFileNumberOfDirectory, pathCacheCapacity, null);
+    }
+
+    /**
+     * 构造目录树
+     *
+     * @param rootFile 根目录文件
+     * @param maxFileNumberOfDirectory 一个目录的最大文件数
+     * @param pathCacheCapacity 路径缓存的容量，为0时不使用路径缓存
+     * @param loader 目录加载器，为null时目录树的内容全部由调用者添加
+     */
+    public DirectoryTree(File rootFile, int maxFileNumberOfDirectory, int pathCacheCapacity,
+                         DirectoryLoader loader) {
         this.root = new Node(null, new ArrayList<>(), rootFile);
+        this.root.loader = loader;
+        this.root.loaded = loader == null;
+        this.maxFileNumberOfDirectory = maxFileNumberOfDirectory;
+        this.pathCacheCapacity = pathCacheCapacity;
+        this.pathCache = new ConcurrentHashMap<>();
     }
 
     /**
@@ -51,31 +127,51 @@ public class DirectoryTree {
             throw new NotFoundException("目录不存在");
         }
 
-        // 目录节点已经到达上限
-        if (directory.children.size() >= FileConstant.MAX_FILE_NUMBER_OF_DIRECTORY) {
-            throw new IndexOutOfBoundsException("目录节点数已到达上限");
-        }
+        synchronized (directory) {
+            directory.load();
+            // 目录节点已经到达上限
+            if (directory.children.size() >= maxFileNumberOfDirectory) {
+                throw new IndexOutOfBoundsException("目录节点数已到达上限");
+            }
 
-        directory.children.add(file);
+            directory.children.add(file);
+            directory.putIndex(file);
+        }
+        // 新路径及其子路径可能被缓存为不存在
+        if (!pathCache.isEmpty()) {
+            invalidate(getPath(file));
+        }
         return directory;
     }
 
     /**
      * 增加一个子节点
+     * 用于新建文件，新建的目录是空目录，不需要再加载
      *
      * @param directory Node 目录节点
      * @param file File 文件节点
      * @return 添加节点之后的目录
      */
     public Node addNode(Node directory, File file) {
-        Node child;
+        return addNode(directory, newNode(directory, file));
+    }
+
+    /**
+     * 新建一个还没有加入目录的节点，调用者可以在加入目录之前初始化它
+     * 用于新建文件，新建的目录是空目录，不需要再加载
+     *
+     * @param directory 目录节点
+     * @param file 节点的文件
+     * @return 新建的节点
+     */
+    public Node newNode(Node directory, File file) {
         // 如果是目录就初始化子节点列表
         if (file.getFileAttribute().isDirectory()) {
-            child = new Node(directory, new ArrayList<>(), file);
-        } else {
-            child = new Node(directory, null, file);
+            Node child = new Node(directory, new ArrayList<>(), file);
+            child.loaded = true;
+            return child;
         }
-        return addNode(directory, child);
+        return new Node(directory, null, file);
     }
 
     /**
@@ -108,39 +204,74 @@ public class DirectoryTree {
      * @return Node 文件节点
      */
     public Node getNode(String path) {
+        path = PathUtils.normalize(path);
         // 路径不是以"/"为开头的，非法路径
         if (!path.startsWith(SEPARATOR)) {
             return null;
         }
+        if (pathCacheCapacity == 0) {
+            return resolve(path);
+        }
+
+        Node node = pathCache.get(path);
+        if (node != null) {
+            return node == NOT_EXIST ? null : node;
+        }
+        int count = invalidateCount.get();
+        node = resolve(path);
+        Node value = node == null ? NOT_EXIST : node;
+        if (pathCache.size() >= pathCacheCapacity) {
+            evict();
+        }
+        pathCache.put(path, value);
+        // 解析期间有节点被修改，结果可能已经过时
+        if (invalidateCount.get() != count) {
+            pathCache.remove(path, value);
+        }
+        return node;
+    }
+
+    /**
+     * 获取一个节点的绝对路径
+     *
+     * @param node 节点
+     * @return 绝对路径
+     */
+    public String getPath(Node node) {
+        if (node.parent == null) {
+            return ROOT_PATH;
+        }
+        StringBuilder builder = new StringBuilder();
+        appendPath(builder, node);
+        return builder.toString();
+    }
 
-        // 解析路径
-        String[] directories = path.trim().split(SEPARATOR);
+    /**
+     * 从根目录开始逐层解析规范化的路径
+     *
+     * @param path 规范化的路径
+     * @return Node 文件节点，不存在时返回null
+     */
+    private Node resolve(String path) {
+        // 逐层解析路径，不切分字符串
         Node node = root;
-        for (int i = 1; i < directories.length; i++) {
-            for (int j = 0; j < node.children.size(); j++) {
-                Node child = node.children.get(j);
-                // 如果此文件是目录文件且文件名和路径相符合
-                if (FileSupporter.getFileName(child.file).equals(directories[i])) {
-                    if (i == directories.length - 1) {
-                        return child;
-                    }
-                    // 如果此文件是目录
-                    if (child.file.getFileAttribute().isDirectory()) {
-                        node = child;
-                        break;
-                    }
-                }
-                // 如果遍历完目录还是没找到，说明该目录不存在
-                if (j == node.children.size() - 1) {
-                    return null;
-                }
+        int start = 1;
+        while (start < path.length()) {
+            int end = path.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                end = path.length();
             }
-            // 否则如果已经是最后一层了，表示找到文件
-            if (i == directories.length - 1) {
+            // 上一层不是目录
+            if (node.children == null) {
                 return null;
             }
+            node = node.getChild(path, start, end);
+            // 该层不存在
+            if (node == null) {
+                return null;
+            }
+            start = end + 1;
         }
-        // 如果以上情况都不符合，代表该路径是根目录
         return node;
     }
 
@@ -150,7 +281,8 @@ public class DirectoryTree {
      * @return Node 被删除的节点
      */
     public Node deleteNode(String path) {
-        int index = path.trim().lastIndexOf(SEPARATOR);
+        path = PathUtils.normalize(path);
+        int index = path.lastIndexOf(SEPARATOR);
         String directoryPath;
         String fileName = path.substring(index + 1);
         // 该节点在根目录下
@@ -171,18 +303,119 @@ public class DirectoryTree {
      * @throws NotFoundException 未找到文件
      */
     public Node deleteNode(String directoryPath, String fileName) {
-        Node directory = getNode(directoryPath);
+        return deleteNode(getNode(directoryPath), fileName);
+    }
+
+    /**
+     * 删除一个节点，被删除的节点会被标记为已删除
+     *
+     * @param directory 目录节点
+     * @param fileName 文件名
+     * @return Node 被删除的节点
+     * @throws NotFoundException 未找到文件
+     */
+    public Node deleteNode(Node directory, String fileName) {
         if (directory == null) {
             throw new NotFoundException("未找到文件");
         }
 
-        for (Node child : directory.children) {
-            if (fileName.equals(FileSupporter.getFileName(child.getFile()))) {
-                directory.children.remove(child);
-                return child;
+        Node child;
+        synchronized (directory) {
+            child = directory.getChild(fileName);
+            if (child == null) {
+                throw new NotFoundException("未找到文件");
+            }
+            directory.children.remove(child);
+            directory.removeIndex(child);
+            child.deleted = true;
+        }
+        invalidate(getPath(child));
+        return child;
+    }
+
+    /**
+     * 重命名一个节点，同时更新父目录的索引
+     *
+     * @param node 节点
+     * @param file 新的文件
+     * @return Node 重命名后的节点
+     */
+    public Node renameNode(Node node, File file) {
+        String oldPath = getPath(node);
+        node.setFile(file);
+        // 旧路径及其子路径不再存在，新路径及其子路径可能被缓存为不存在
+        invalidate(oldPath);
+        invalidate(getPath(node));
+        return node;
+    }
+
+    /**
+     * 启动一个后台守护线程，按广度优先的顺序预先加载所有目录
+     * 预先加载和按需加载可以同时进行，同一个目录只会加载一次
+     * 加载失败时预先加载线程结束，异常交给线程的未捕获异常处理器，没有加载的目录仍然在第一次访问时加载
+     *
+     * @return 预先加载线程
+     */
+    public Thread startWarmUp() {
+        Thread thread = new Thread(() -> {
+            Deque<Node> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                Node directory = queue.poll();
+                List<Node> children;
+                synchronized (directory) {
+                    directory.load();
+                    children = new ArrayList<>(directory.children);
+                }
+                for (Node child : children) {
+                    if (child.children != null) {
+                        queue.add(child);
+                    }
+                }
+            }
+        }, "directory-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * 使一个路径及其所有子路径的缓存失效
+     *
+     * @param path 规范化的路径
+     */
+    private void invalidate(String path) {
+        // 先增加失效次数，正在解析的路径在放入缓存之后会检查它
+        invalidateCount.incrementAndGet();
+        for (Iterator<String> iterator = pathCache.keySet().iterator(); iterator.hasNext(); ) {
+            if (PathUtils.isSelfOrDescendant(path, iterator.next())) {
+                iterator.remove();
             }
         }
-        throw new NotFoundException("未找到文件");
+    }
+
+    /**
+     * 路径缓存满时淘汰任意一项
+     */
+    private void evict() {
+        Iterator<String> iterator = pathCache.keySet().iterator();
+        if (iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 把节点的绝对路径追加到字符串后面，递归调用
+     *
+     * @param builder 字符串
+     * @param node 节点，不能是根节点
+     */
+    private static void appendPath(StringBuilder builder, Node node) {
+        if (node.parent.parent != null) {
+            appendPath(builder, node.parent);
+        }
+        builder.append(SEPARATOR).append(node.name);
     }
 
     /**
@@ -197,16 +430,369 @@ public class DirectoryTree {
     /**
      * 目录树的节点，每个节点代表一个目录文件或者普通文件
      * 叶子节点代表普通文件，非叶子节点代表目录文件
+     * 目录节点的子节点同时存放在列表和散列索引里，列表保持子节点的顺序，索引用于按文件名查找
+     * 目录节点的子节点在第一次访问时才通过目录加载器加载，子目录节点继承父目录节点的目录加载器
+     * 散列索引只在持有目录节点的锁时修改，每次修改都替换成新的数组，查找子节点不需要加锁
      */
     public static class Node {
+
+        /**
+         * 散列索引的初始容量，必须是2的幂
+         */
+        private static final int INITIAL_INDEX_CAPACITY = 8;
+
         private Node parent;
         private List<Node> children;
-        private File file;
+        private volatile File file;
+
+        /**
+         * 文件名，包括文件类型，即FileSupporter.getFileName(file)，修改文件时同时更新
+         */
+        private volatile String name;
+
+        /**
+         * 子节点的散列索引，使用线性探测的开放寻址法，普通文件节点为null
+         */
+        private volatile Node[] index;
+
+        /**
+         * 读写锁，保护文件内容，目录节点的读写锁保护目录的文件项
+         */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * 是否已经从目录树里删除
+         */
+        private volatile boolean deleted;
+
+        /**
+         * 文件内容的版本，每次修改文件内容或者文件长度时增加，持有写锁时修改
+         */
+        private volatile int version;
+
+        /**
+         * 目录加载器，为null时子节点全部由调用者添加
+         */
+        private DirectoryLoader loader;
+
+        /**
+         * 子节点是否已经加载
+         */
+        private volatile boolean loaded;
+
+        /**
+         * 该文件的文件项在父目录里的序号，根节点为-1
+         */
+        private int slot = -1;
+
+        /**
+         * 该文件的文件项所在的磁盘块下标，根节点为-1
+         */
+        private int slotDiskBlockIndex = -1;
+
+        /**
+         * 该文件的文件项在磁盘块内的偏移量，根节点为-1
+         */
+        private int slotOffset = -1;
+
+        /**
+         * 目录能存放的文件项数量，即目录磁盘块链上所有磁盘块能存放的文件项数量之和
+         */
+        private int slotCount;
+
+        /**
+         * 空闲文件项位图，第i位为1表示目录里的第i个文件项是空的，普通文件节点为null
+         */
+        private BitSet freeSlots;
 
         public Node(Node parent, List<Node> children, File file) {
             this.parent = parent;
-            this.children = children;
             this.file = file;
+            this.name = FileSupporter.getFileName(file);
+            this.loader = parent == null ? null : parent.loader;
+            this.loaded = children == null || loader == null;
+            setChildren(children);
+        }
+
+        /**
+         * 获取该文件的文件项在父目录里的序号
+         *
+         * @return 文件项序号，根节点为-1
+         */
+        public int getSlot() {
+            return slot;
+        }
+
+        /**
+         * 获取该文件的文件项所在的磁盘块下标
+         *
+         * @return 磁盘块下标，根节点为-1
+         */
+        public int getSlotDiskBlockIndex() {
+            return slotDiskBlockIndex;
+        }
+
+        /**
+         * 获取该文件的文件项在磁盘块内的偏移量
+         *
+         * @return 磁盘块内的偏移量，根节点为-1
+         */
+        public int getSlotOffset() {
+            return slotOffset;
+        }
+
+        /**
+         * 设置该文件的文件项的位置，在解析或者创建文件项时调用
+         *
+         * @param slot 文件项在父目录里的序号
+         * @param slotDiskBlockIndex 文件项所在的磁盘块下标
+         * @param slotOffset 文件项在磁盘块内的偏移量
+         */
+        public void setSlot(int slot, int slotDiskBlockIndex, int slotOffset) {
+            this.slot = slot;
+            this.slotDiskBlockIndex = slotDiskBlockIndex;
+            this.slotOffset = slotOffset;
+        }
+
+        /**
+         * 获取目录能存放的文件项数量
+         *
+         * @return 文件项数量
+         */
+        public int getSlotCount() {
+            return slotCount;
+        }
+
+        /**
+         * 获取空闲文件项位图
+         *
+         * @return 空闲文件项位图，第i位为1表示目录里的第i个文件项是空的
+         */
+        public BitSet getFreeSlots() {
+            return freeSlots;
+        }
+
+        /**
+         * 设置目录的文件项数量和空闲文件项位图，在加载目录或者目录磁盘块链增长时调用
+         *
+         * @param slotCount 文件项数量
+         * @param freeSlots 空闲文件项位图
+         */
+        public void setSlots(int slotCount, BitSet freeSlots) {
+            this.slotCount = slotCount;
+            this.freeSlots = freeSlots;
+        }
+
+        /**
+         * 获取读写锁
+         *
+         * @return 读写锁
+         */
+        public ReadWriteLock getLock() {
+            return lock;
+        }
+
+        /**
+         * 是否已经从目录树里删除，持有该节点的锁之后需要检查
+         *
+         * @return 是否已经删除
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * 获取文件内容的版本
+         *
+         * @return 文件内容的版本
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * 增加文件内容的版本，在持有写锁修改文件内容或者文件长度时调用
+         */
+        public void incrementVersion() {
+            version++;
+        }
+
+        /**
+         * 子节点是否已经加载
+         *
+         * @return 是否已经加载
+         */
+        public boolean isLoaded() {
+            return loaded;
+        }
+
+        /**
+         * 加载子节点，已经加载过的目录不会再加载
+         *
+         * @throws UncheckedIOException 读取目录时IO错误
+         */
+        private void load() {
+            if (loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                try {
+                    children.addAll(loader.load(this));
+                    index = newIndex(children);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                loaded = true;
+            }
+        }
+
+        /**
+         * 获取文件名，包括文件类型
+         *
+         * @return 文件名
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 按文件名查找子节点
+         *
+         * @param name 文件名，包括文件类型
+         * @return 子节点，不存在时返回null
+         */
+        public Node getChild(String name) {
+            return getChild(name, 0, name.length());
+        }
+
+        /**
+         * 按路径里的一段查找子节点，不创建任何对象
+         *
+         * @param path 路径
+         * @param start 文件名在路径里的起始下标
+         * @param end 文件名在路径里的结束下标（不包括）
+         * @return 子节点，不存在时返回null
+         */
+        private Node getChild(String path, int start, int end) {
+            if (children == null) {
+                return null;
+            }
+            load();
+            Node[] index = this.index;
+            int length = end - start;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int mask = index.length - 1;
+            for (int i = spread(hash) & mask; index[i] != null; i = (i + 1) & mask) {
+                String childName = index[i].name;
+                if (childName.length() == length && path.regionMatches(start, childName, 0, length)) {
+                    return index[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 把子节点加入散列索引，调用前子节点已经加入子节点列表
+         *
+         * @param child 子节点
+         */
+        private void putIndex(Node child) {
+            // 装载因子超过1/2时扩容
+            if ((children.size() << 1) > index.length) {
+                index = newIndex(children);
+                return;
+            }
+            Node[] table = index.clone();
+            insert(table, child);
+            index = table;
+        }
+
+        /**
+         * 把子节点从散列索引里删除
+         *
+         * @param child 子节点
+         */
+        private void removeIndex(Node child) {
+            Node[] table = index.clone();
+            removeIndex(table, child);
+            index = table;
+        }
+
+        /**
+         * 为子节点列表建立新的散列索引，装载因子不超过1/2
+         *
+         * @param children 子节点列表
+         * @return 散列索引
+         */
+        private static Node[] newIndex(List<Node> children) {
+            int capacity = INITIAL_INDEX_CAPACITY;
+            while (capacity < (children.size() << 1)) {
+                capacity <<= 1;
+            }
+            Node[] table = new Node[capacity];
+            for (Node child : children) {
+                insert(table, child);
+            }
+            return table;
+        }
+
+        /**
+         * 把子节点从散列索引里删除，删除后把同一探测序列上后面的节点前移，保证查找不会提前结束
+         *
+         * @param index 散列索引
+         * @param child 子节点
+         */
+        private static void removeIndex(Node[] index, Node child) {
+            int mask = index.length - 1;
+            int i = spread(child.name.hashCode()) & mask;
+            while (index[i] != child) {
+                // 子节点不在索引里
+                if (index[i] == null) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            index[i] = null;
+            for (int j = (i + 1) & mask; index[j] != null; j = (j + 1) & mask) {
+                int home = spread(index[j].name.hashCode()) & mask;
+                // 该节点的初始位置不在(i, j]之间，可以前移到空出来的位置
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    index[i] = index[j];
+                    index[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        /**
+         * 把节点放入散列索引的空位置，调用前需要保证有空位置
+         *
+         * @param index 散列索引
+         * @param child 子节点
+         */
+        private static void insert(Node[] index, Node child) {
+            int mask = index.length - 1;
+            int i = spread(child.name.hashCode()) & mask;
+            while (index[i] != null) {
+                i = (i + 1) & mask;
+            }
+            index[i] = child;
+        }
+
+        /**
+         * 打散散列值的高位，减少只有低位不同的文件名的冲突
+         *
+         * @param hash 散列值
+         * @return 打散后的散列值
+         */
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
         }
 
         public Node getParent() {
@@ -218,19 +804,41 @@ public class DirectoryTree {
         }
 
         public List<Node> getChildren() {
+            if (children != null) {
+                load();
+            }
             return children;
         }
 
         public void setChildren(List<Node> children) {
             this.children = children;
+            index = children == null ? null : newIndex(children);
         }
 
         public File getFile() {
             return file;
         }
 
+        /**
+         * 设置文件，文件名改变时同时更新父目录的索引
+         *
+         * @param file 文件
+         */
         public void setFile(File file) {
-            this.file = file;
+            String name = FileSupporter.getFileName(file);
+            if (parent != null && parent.index != null && !name.equals(this.name)) {
+                synchronized (parent) {
+                    Node[] table = parent.index.clone();
+                    removeIndex(table, this);
+                    this.file = file;
+                    this.name = name;
+                    insert(table, this);
+                    parent.index = table;
+                }
+            } else {
+                this.file = file;
+                this.name = name;
+            }
         }
 
         @Override
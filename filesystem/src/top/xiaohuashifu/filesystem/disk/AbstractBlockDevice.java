@@ -0,0 +1,81 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+
+/**
+ * 描述: 块设备的基础实现，保存磁盘的几何信息并提供越界检查
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 15:52
+ */
+public abstract class AbstractBlockDevice implements BlockDevice {
+
+    /**
+     * 磁盘块大小
+     */
+    protected final int blockSize;
+
+    /**
+     * 磁盘块数量
+     */
+    protected final int blockCount;
+
+    protected AbstractBlockDevice(int blockSize, int blockCount) {
+        if (blockSize <= 0 || blockCount <= 0) {
+            throw new IllegalArgumentException("非法的磁盘大小");
+        }
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+    }
+
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @Override
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * 计算磁盘块内某个位置在设备内的字节位置，并检查读写范围是否越界
+     *
+     * @param index 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @param length 读写长度
+     * @return 设备内的字节位置
+     * @throws EOFException 读写范围超出磁盘大小
+     */
+    protected long position(int index, int boffset, int length) throws EOFException {
+        long position = (long) index * blockSize + boffset;
+        if (index < 0 || boffset < 0 || length < 0 || position + length > (long) blockCount * blockSize) {
+            throw new EOFException("读写位置超出磁盘大小");
+        }
+        return position;
+    }
+
+    /**
+     * 计算多个缓冲区的剩余长度之和
+     *
+     * @param srcs 缓冲区
+     * @return 剩余长度之和
+     */
+    protected static int remaining(ByteBuffer[] srcs) {
+        int length = 0;
+        for (ByteBuffer src : srcs) {
+            length += src.remaining();
+        }
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" +
+                "blockSize=" + blockSize +
+                ", blockCount=" + blockCount +
+                '}';
+    }
+}
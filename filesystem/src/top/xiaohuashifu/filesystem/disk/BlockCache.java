@@ -0,0 +1,617 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 描述: 磁盘块缓存，以磁盘块下标为键，按照LRU淘汰
+ * 写入的磁盘块只标记为脏块，在被淘汰或者flush()时才写回块设备
+ * 被固定的磁盘块不会被淘汰，也不计入缓存容量，用于文件分配表和目录这类频繁访问的磁盘块
+ * 容量为0时不缓存任何磁盘块，所有读写直接交给块设备
+ * 使用ReentrantLock而不是synchronized，持有锁读写块设备时虚拟线程不会固定在载体线程上
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-07 14:10
+ */
+public class BlockCache {
+
+    /**
+     * 块设备
+     */
+    private final BlockDevice blockDevice;
+
+    /**
+     * 缓存容量，即最多缓存的未固定磁盘块数量
+     */
+    private final int capacity;
+
+    /**
+     * 缓存项，按访问顺序排列，第一个是最久未访问的
+     */
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    /**
+     * 保护缓存项和统计信息的锁
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 被固定的磁盘块数量
+     */
+    private int pinnedCount;
+
+    /**
+     * 命中次数
+     */
+    private long hitCount;
+
+    /**
+     * 未命中次数
+     */
+    private long missCount;
+
+    /**
+     * 预读的磁盘块数量
+     */
+    private long prefetchCount;
+
+    /**
+     * 预读之后被访问到的磁盘块数量
+     */
+    private long prefetchHitCount;
+
+    /**
+     * 写到块设备的次数，预读在锁外读取期间有写入时放弃放入缓存
+     */
+    private long writeCount;
+
+    /**
+     * 构造磁盘块缓存
+     *
+     * @param blockDevice 块设备
+     * @param capacity 缓存容量
+     */
+    public BlockCache(BlockDevice blockDevice, int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("非法的缓存容量");
+        }
+        this.blockDevice = blockDevice;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * 读取一个磁盘块
+     *
+     * @param index 磁盘块下标
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void read(int index, byte[] bytes, int offset) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = getEntry(index, true);
+            // 不缓存时直接从块设备读取
+            if (entry == null) {
+                blockDevice.readBlock(index, bytes, offset);
+                return;
+            }
+            System.arraycopy(entry.bytes, 0, bytes, offset, entry.bytes.length);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取物理上连续的多个磁盘块，已经缓存的磁盘块从缓存复制，其余连续的磁盘块一次从块设备读取
+     * 从块设备读取的磁盘块不放入缓存，避免大文件的顺序读取把常用的磁盘块淘汰出去
+     * 从块设备读取时不持有缓存的锁，调用者需要保证这些磁盘块不会同时被写入，例如持有文件的读锁
+     *
+     * @param index 第一个磁盘块的下标
+     * @param count 磁盘块数量
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void readBlocks(int index, int count, byte[] bytes, int offset) throws IOException {
+        int blockSize = blockDevice.getBlockSize();
+        // 未缓存的连续磁盘块段，每段是起始序号和磁盘块数量
+        List<int[]> misses = new ArrayList<>();
+        lock.lock();
+        try {
+            int i = 0;
+            while (i < count) {
+                Entry entry = entries.get(index + i);
+                if (entry != null) {
+                    hit(entry);
+                    System.arraycopy(entry.bytes, 0, bytes, offset + i * blockSize, blockSize);
+                    i++;
+                    continue;
+                }
+                // 找出一段连续的未缓存磁盘块
+                int j = i + 1;
+                while (j < count && !entries.containsKey(index + j)) {
+                    j++;
+                }
+                missCount += j - i;
+                misses.add(new int[] {i, j - i});
+                i = j;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (int[] miss : misses) {
+            blockDevice.readBlocks(index + miss[0], miss[1], bytes, offset + miss[0] * blockSize);
+        }
+    }
+
+    /**
+     * 读取一个磁盘块里的一段字节，读取的范围不能超出该磁盘块
+     *
+     * @param index 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @param length 读取长度
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void read(int index, int boffset, byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = getEntry(index, true);
+            // 不缓存时先从块设备读取整块
+            if (entry == null) {
+                byte[] block = new byte[blockDevice.getBlockSize()];
+                blockDevice.readBlock(index, block, 0);
+                System.arraycopy(block, boffset, bytes, offset, length);
+                return;
+            }
+            System.arraycopy(entry.bytes, boffset, bytes, offset, length);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取一个磁盘块里的一段字节到缓冲区，读取的范围不能超出该磁盘块，缓冲区的position会向前移动
+     *
+     * @param index 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @param dst 目标缓冲区
+     * @param length 读取长度
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void read(int index, int boffset, ByteBuffer dst, int length) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = getEntry(index, true);
+            // 不缓存时先从块设备读取整块
+            if (entry == null) {
+                byte[] block = new byte[blockDevice.getBlockSize()];
+                blockDevice.readBlock(index, block, 0);
+                dst.put(block, boffset, length);
+                return;
+            }
+            dst.put(entry.bytes, boffset, length);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从某个磁盘块的块内偏移处开始写入一段字节，写入的范围可以跨越后面相邻的磁盘块
+     *
+     * @param index 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度
+     * @param writeThrough 是否立即写到块设备，否则只标记为脏块
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void write(int index, int boffset, byte[] bytes, int offset, int length,
+                      boolean writeThrough) throws IOException {
+        lock.lock();
+        try {
+            int blockSize = blockDevice.getBlockSize();
+            while (length > 0) {
+                int n = Math.min(length, blockSize - boffset);
+                // 整块覆盖的磁盘块不需要先从块设备读取
+                Entry entry = getEntry(index, n < blockSize);
+                if (entry == null || writeThrough) {
+                    blockDevice.writeBlock(index, boffset, bytes, offset, n);
+                    writeCount++;
+                }
+                if (entry != null) {
+                    System.arraycopy(bytes, offset, entry.bytes, boffset, n);
+                    entry.dirty = entry.dirty || !writeThrough;
+                }
+                index++;
+                boffset = 0;
+                offset += n;
+                length -= n;
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 写入多个整块的磁盘块，最后一块可以只写开头的一部分
+     * 磁盘块按下标排序，需要写到块设备的磁盘块中物理上相邻的合并成一次聚集写入
+     * 已经缓存的磁盘块同时更新缓存，未缓存的磁盘块直接写到块设备，不放入缓存
+     *
+     * @param indexes 磁盘块下标，第i块的内容是bytes[offset + i * 磁盘块大小]开始的一块
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度
+     * @param writeThrough 是否立即写到块设备，否则已经缓存的磁盘块只标记为脏块
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void writeBlocks(int[] indexes, byte[] bytes, int offset, int length,
+                            boolean writeThrough) throws IOException {
+        lock.lock();
+        try {
+            int blockSize = blockDevice.getBlockSize();
+            // 按磁盘块下标排序，同时记住每一块在字节数组里的顺序
+            long[] order = new long[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                order[i] = (long) indexes[i] << 32 | i;
+            }
+            Arrays.sort(order);
+            int runStart = -1;
+            List<ByteBuffer> run = new ArrayList<>();
+            for (long item : order) {
+                int index = (int) (item >>> 32);
+                int i = (int) item;
+                int n = Math.min(blockSize, length - i * blockSize);
+                Entry entry = entries.get(index);
+                if (entry != null) {
+                    hit(entry);
+                    System.arraycopy(bytes, offset + i * blockSize, entry.bytes, 0, n);
+                    entry.dirty = entry.dirty || !writeThrough;
+                    // 只更新缓存的磁盘块不需要写到块设备
+                    if (!writeThrough) {
+                        continue;
+                    }
+                }
+                // 不相邻时先写出前面的一段
+                if (!run.isEmpty() && index != runStart + run.size()) {
+                    blockDevice.writeBlocks(runStart, run.toArray(new ByteBuffer[0]));
+                    writeCount++;
+                    run.clear();
+                }
+                if (run.isEmpty()) {
+                    runStart = index;
+                }
+                run.add(ByteBuffer.wrap(bytes, offset + i * blockSize, n));
+                // 不完整的磁盘块后面不能再接其他磁盘块
+                if (n < blockSize) {
+                    blockDevice.writeBlocks(runStart, run.toArray(new ByteBuffer[0]));
+                    writeCount++;
+                    run.clear();
+                }
+            }
+            if (!run.isEmpty()) {
+                blockDevice.writeBlocks(runStart, run.toArray(new ByteBuffer[0]));
+                writeCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 预读磁盘块到缓存，已经缓存的磁盘块跳过，预读的磁盘块在第一次被访问时计为预读命中
+     * 从块设备读取时不持有缓存的锁，读取期间有磁盘块写到块设备时放弃这次预读，避免缓存旧的内容
+     * 放入缓存时只放入仍然没有缓存的磁盘块，不会覆盖期间新建的缓存项和脏块
+     *
+     * @param indexes 磁盘块下标
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void prefetch(int[] indexes) throws IOException {
+        if (capacity == 0) {
+            return;
+        }
+        List<Entry> misses = new ArrayList<>();
+        long expectedWriteCount;
+        lock.lock();
+        try {
+            for (int index : indexes) {
+                if (!entries.containsKey(index)) {
+                    misses.add(new Entry(index, new byte[blockDevice.getBlockSize()]));
+                }
+            }
+            expectedWriteCount = writeCount;
+        } finally {
+            lock.unlock();
+        }
+        if (misses.isEmpty()) {
+            return;
+        }
+        for (Entry entry : misses) {
+            blockDevice.readBlock(entry.index, entry.bytes, 0);
+        }
+        lock.lock();
+        try {
+            if (writeCount != expectedWriteCount) {
+                return;
+            }
+            for (Entry entry : misses) {
+                if (entries.containsKey(entry.index)) {
+                    continue;
+                }
+                entry.prefetched = true;
+                entries.put(entry.index, entry);
+                prefetchCount++;
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 固定一个磁盘块，固定的磁盘块会一直留在缓存中
+     *
+     * @param index 磁盘块下标
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void pin(int index) throws IOException {
+        lock.lock();
+        try {
+            if (capacity == 0) {
+                return;
+            }
+            Entry entry = getEntry(index, true);
+            if (!entry.pinned) {
+                entry.pinned = true;
+                pinnedCount++;
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 取消固定一个磁盘块，之后该磁盘块可以被淘汰
+     *
+     * @param index 磁盘块下标
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void unpin(int index) throws IOException {
+        lock.lock();
+        try {
+            Entry entry = entries.get(index);
+            if (entry != null && entry.pinned) {
+                entry.pinned = false;
+                pinnedCount--;
+                evict();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把所有脏块按磁盘块下标顺序写回块设备，物理上相邻的脏块合并成一次聚集写入
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            List<Entry> dirtyEntries = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                if (entry.dirty) {
+                    dirtyEntries.add(entry);
+                }
+            }
+            dirtyEntries.sort(null);
+            int i = 0;
+            while (i < dirtyEntries.size()) {
+                int j = i + 1;
+                while (j < dirtyEntries.size() && dirtyEntries.get(j).index == dirtyEntries.get(j - 1).index + 1) {
+                    j++;
+                }
+                ByteBuffer[] srcs = new ByteBuffer[j - i];
+                for (int k = i; k < j; k++) {
+                    srcs[k - i] = ByteBuffer.wrap(dirtyEntries.get(k).bytes);
+                    dirtyEntries.get(k).dirty = false;
+                }
+                blockDevice.writeBlocks(dirtyEntries.get(i).index, srcs);
+                writeCount++;
+                i = j;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取缓存信息
+     *
+     * @return Map<String, Double> 缓存信息
+     */
+    public Map<String, Double> getInfo() {
+        lock.lock();
+        try {
+            double lookupCount = hitCount + missCount;
+            Map<String, Double> map = new LinkedHashMap<>();
+            map.put("capacity", (double) capacity);
+            map.put("size", (double) entries.size());
+            map.put("pinnedCount", (double) pinnedCount);
+            map.put("hitCount", (double) hitCount);
+            map.put("missCount", (double) missCount);
+            map.put("hitRate", lookupCount == 0 ? 0 : hitCount / lookupCount);
+            map.put("prefetchCount", (double) prefetchCount);
+            map.put("prefetchHitCount", (double) prefetchHitCount);
+            return Collections.unmodifiableMap(map);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHitCount() {
+        lock.lock();
+        try {
+            return hitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMissCount() {
+        lock.lock();
+        try {
+            return missCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPrefetchCount() {
+        lock.lock();
+        try {
+            return prefetchCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPrefetchHitCount() {
+        lock.lock();
+        try {
+            return prefetchHitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取一个磁盘块的缓存项，不存在时新建缓存项
+     * 新建的缓存项可能使缓存超出容量，需要调用者在使用完缓存项之后调用evict()
+     *
+     * @param index 磁盘块下标
+     * @param load 新建缓存项时是否从块设备读取磁盘块内容
+     * @return 缓存项，不缓存时返回null
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private Entry getEntry(int index, boolean load) throws IOException {
+        if (capacity == 0) {
+            return null;
+        }
+        Entry entry = entries.get(index);
+        if (entry != null) {
+            hit(entry);
+            return entry;
+        }
+        missCount++;
+        entry = new Entry(index, new byte[blockDevice.getBlockSize()]);
+        if (load) {
+            blockDevice.readBlock(index, entry.bytes, 0);
+        }
+        entries.put(index, entry);
+        return entry;
+    }
+
+    /**
+     * 记录一次缓存命中，预读的磁盘块第一次被访问时同时记录一次预读命中
+     *
+     * @param entry 缓存项
+     */
+    private void hit(Entry entry) {
+        hitCount++;
+        if (entry.prefetched) {
+            entry.prefetched = false;
+            prefetchHitCount++;
+        }
+    }
+
+    /**
+     * 淘汰最久未访问的未固定磁盘块，直到缓存不超出容量，脏块会先写回块设备
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private void evict() throws IOException {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (entries.size() - pinnedCount > capacity && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.pinned) {
+                writeBack(entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 把脏块写回块设备
+     *
+     * @param entry 缓存项
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private void writeBack(Entry entry) throws IOException {
+        if (entry.dirty) {
+            blockDevice.writeBlock(entry.index, 0, entry.bytes, 0, entry.bytes.length);
+            entry.dirty = false;
+            writeCount++;
+        }
+    }
+
+    /**
+     * 缓存项
+     */
+    private static class Entry implements Comparable<Entry> {
+
+        /**
+         * 磁盘块下标
+         */
+        private final int index;
+
+        /**
+         * 磁盘块内容
+         */
+        private final byte[] bytes;
+
+        /**
+         * 是否被修改过且还没写回块设备
+         */
+        private boolean dirty;
+
+        /**
+         * 是否被固定
+         */
+        private boolean pinned;
+
+        /**
+         * 是否是预读的且还没被访问过
+         */
+        private boolean prefetched;
+
+        private Entry(int index, byte[] bytes) {
+            this.index = index;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Integer.compare(index, o.index);
+        }
+    }
+
+}
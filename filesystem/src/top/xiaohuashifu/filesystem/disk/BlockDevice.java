@@ -0,0 +1,81 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 描述: 块设备，磁盘管理器通过块设备读写磁盘块
+ * 块设备只负责按块存取字节，不关心磁盘块的内容
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 15:40
+ */
+public interface BlockDevice extends Closeable {
+
+    /**
+     * 获取磁盘块大小
+     *
+     * @return 磁盘块大小（单位字节）
+     */
+    int getBlockSize();
+
+    /**
+     * 获取磁盘块数量
+     *
+     * @return 磁盘块数量
+     */
+    int getBlockCount();
+
+    /**
+     * 读取一个磁盘块
+     *
+     * @param index 磁盘块下标
+     * @param bytes 目标字节数组，至少有offset + getBlockSize()个字节
+     * @param offset 目标字节数组内的偏移量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    void readBlock(int index, byte[] bytes, int offset) throws IOException;
+
+    /**
+     * 读取物理上连续的多个磁盘块，只需要一次读取
+     *
+     * @param index 第一个磁盘块的下标
+     * @param count 磁盘块数量
+     * @param bytes 目标字节数组，至少有offset + count * getBlockSize()个字节
+     * @param offset 目标字节数组内的偏移量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    void readBlocks(int index, int count, byte[] bytes, int offset) throws IOException;
+
+    /**
+     * 从某个磁盘块的块内偏移处开始写入一段字节，写入的范围可以跨越后面相邻的磁盘块
+     *
+     * @param index 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度
+     * @throws IOException IO错误，交给上一层处理
+     */
+    void writeBlock(int index, int boffset, byte[] bytes, int offset, int length) throws IOException;
+
+    /**
+     * 从某个磁盘块的开头开始，把多个缓冲区的剩余内容依次写到物理上连续的位置，只需要一次写入
+     * 缓冲区的position会向前移动
+     *
+     * @param index 第一个磁盘块的下标
+     * @param srcs 源缓冲区
+     * @throws IOException IO错误，交给上一层处理
+     */
+    void writeBlocks(int index, ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * 把已经写入的数据强制同步到底层存储
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    void flush() throws IOException;
+
+}
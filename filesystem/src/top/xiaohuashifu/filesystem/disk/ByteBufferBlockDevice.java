@@ -0,0 +1,70 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 描述: 基于ByteBuffer的块设备，读写磁盘块只是缓冲区之间的拷贝
+ * 每次读写都使用缓冲区的副本，不修改共享缓冲区的position和limit
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 16:20
+ */
+public class ByteBufferBlockDevice extends AbstractBlockDevice {
+
+    /**
+     * 磁盘内容
+     */
+    protected final ByteBuffer buffer;
+
+    /**
+     * 使用一个缓冲区构造块设备
+     *
+     * @param buffer 缓冲区，从下标0开始的整块都作为磁盘
+     * @param blockSize 磁盘块大小
+     */
+    public ByteBufferBlockDevice(ByteBuffer buffer, int blockSize) {
+        super(blockSize, buffer.capacity() / blockSize);
+        this.buffer = buffer;
+    }
+
+    @Override
+    public void readBlock(int index, byte[] bytes, int offset) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) position(index, 0, blockSize));
+        source.get(bytes, offset, blockSize);
+    }
+
+    @Override
+    public void readBlocks(int index, int count, byte[] bytes, int offset) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) position(index, 0, count * blockSize));
+        source.get(bytes, offset, count * blockSize);
+    }
+
+    @Override
+    public void writeBlock(int index, int boffset, byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer target = buffer.duplicate();
+        target.position((int) position(index, boffset, length));
+        target.put(bytes, offset, length);
+    }
+
+    @Override
+    public void writeBlocks(int index, ByteBuffer[] srcs) throws IOException {
+        ByteBuffer target = buffer.duplicate();
+        target.position((int) position(index, 0, remaining(srcs)));
+        for (ByteBuffer src : srcs) {
+            target.put(src);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+}
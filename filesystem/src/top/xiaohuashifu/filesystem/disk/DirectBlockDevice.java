@@ -0,0 +1,25 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 描述: 基于堆外直接内存的块设备，数据只存在于内存中
+ * 不占用Java堆空间，适合较大的内存磁盘
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 16:31
+ */
+public class DirectBlockDevice extends ByteBufferBlockDevice {
+
+    /**
+     * 构造一个全零的堆外内存磁盘
+     *
+     * @param blockSize 磁盘块大小
+     * @param blockCount 磁盘块数量
+     */
+    public DirectBlockDevice(int blockSize, int blockCount) {
+        super(ByteBuffer.allocateDirect(blockSize * blockCount), blockSize);
+    }
+
+}
@@ -17,4 +17,29 @@ public class DiskConstant {
 
     public static final int BLOCK_SIZE = 64;
 
+    /**
+     * 默认的磁盘块缓存容量（单位磁盘块）
+     */
+    public static final int DEFAULT_CACHE_CAPACITY = 64;
+
+    /**
+     * 超级块的魔数，即"XHSF"，没有超级块的是旧格式磁盘
+     */
+    public static final int SUPERBLOCK_MAGIC = 0x58485346;
+
+    /**
+     * 超级块格式的版本号
+     */
+    public static final byte SUPERBLOCK_VERSION = 1;
+
+    /**
+     * 超级块的大小（单位字节），超级块放在第0块磁盘块的开头
+     */
+    public static final int SIZE_OF_SUPERBLOCK = 32;
+
+    /**
+     * 最小的磁盘块大小
+     */
+    public static final int MIN_BLOCK_SIZE = 64;
+
 }
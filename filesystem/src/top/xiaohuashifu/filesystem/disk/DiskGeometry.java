@@ -0,0 +1,304 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import top.xiaohuashifu.filesystem.file.FileConstant;
+import top.xiaohuashifu.filesystem.file.allocation.FileAllocationTableConstant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * 描述: 磁盘几何信息，描述磁盘块大小、磁盘块数量、文件分配表项宽度和各个区域的位置
+ *
+ * 有两种磁盘格式：
+ * 旧格式没有超级块，磁盘块大小64字节，128块，文件分配表项1字节，文件分配表占第0、1块，根目录在第2块，文件项8字节
+ * 新格式第0块开头是超级块，文件分配表从第1块开始，紧接着是根目录，文件项16字节，磁盘块下标和文件长度都是4字节
+ *
+ * 超级块布局（大端序）：
+ * 0 魔数(4) 4 版本(1) 5 文件分配表项宽度(1) 6 保留(2) 8 磁盘块大小(4) 12 磁盘块数量(4)
+ * 16 文件分配表起始块(4) 20 文件分配表块数(4) 24 根目录块(4) 28 文件项大小(4)
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-08 20:15
+ */
+public final class DiskGeometry {
+
+    /**
+     * 旧格式磁盘的几何信息
+     */
+    public static final DiskGeometry LEGACY = new DiskGeometry(false, DiskConstant.BLOCK_SIZE,
+            FileAllocationTableConstant.LENGTH, 1, 0, FileAllocationTableConstant.NUMBER_OF_FAT_DISK_BLOCKS,
+            FileConstant.DISK_BLOCK_NUMBER_OF_ROOT_DIRECTORY, FileConstant.SIZE_OF_FILE);
+
+    /**
+     * 是否有超级块
+     */
+    private final boolean superblock;
+
+    /**
+     * 磁盘块大小（单位字节）
+     */
+    private final int blockSize;
+
+    /**
+     * 磁盘块数量，也是文件分配表的长度
+     */
+    private final int blockCount;
+
+    /**
+     * 文件分配表项宽度（单位字节），1、2或4
+     */
+    private final int fatEntryWidth;
+
+    /**
+     * 文件分配表的起始磁盘块下标
+     */
+    private final int fatStartBlock;
+
+    /**
+     * 文件分配表所占的磁盘块数量
+     */
+    private final int fatBlockCount;
+
+    /**
+     * 根目录磁盘块下标，在它之前的磁盘块都是超级块和文件分配表
+     */
+    private final int rootDirectoryBlock;
+
+    /**
+     * 一个文件项的大小（单位字节）
+     */
+    private final int sizeOfFile;
+
+    private DiskGeometry(boolean superblock, int blockSize, int blockCount, int fatEntryWidth, int fatStartBlock,
+                         int fatBlockCount, int rootDirectoryBlock, int sizeOfFile) {
+        this.superblock = superblock;
+        this.blockSize = blockSize;
+        this.blockCount = blockCount;
+        this.fatEntryWidth = fatEntryWidth;
+        this.fatStartBlock = fatStartBlock;
+        this.fatBlockCount = fatBlockCount;
+        this.rootDirectoryBlock = rootDirectoryBlock;
+        this.sizeOfFile = sizeOfFile;
+    }
+
+    /**
+     * 生成一个新格式磁盘的几何信息
+     *
+     * @param blockSize 磁盘块大小，必须是不小于64的2的幂
+     * @param blockCount 磁盘块数量
+     * @param fatEntryWidth 文件分配表项宽度，1、2或4，必须能表示最大的磁盘块下标
+     * @return 磁盘几何信息
+     * @throws IllegalArgumentException 非法的几何信息
+     */
+    public static DiskGeometry create(int blockSize, int blockCount, int fatEntryWidth) {
+        if (blockSize < DiskConstant.MIN_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("磁盘块大小必须是不小于" + DiskConstant.MIN_BLOCK_SIZE + "的2的幂");
+        }
+        if (fatEntryWidth != 1 && fatEntryWidth != 2 && fatEntryWidth != 4) {
+            throw new IllegalArgumentException("文件分配表项宽度只能是1、2或4");
+        }
+        if (blockCount - 1 > maxIndex(fatEntryWidth)) {
+            throw new IllegalArgumentException("文件分配表项宽度不足以表示所有磁盘块");
+        }
+        int fatBlockCount = (int) (((long) blockCount * fatEntryWidth + blockSize - 1) / blockSize);
+        int rootDirectoryBlock = 1 + fatBlockCount;
+        if (rootDirectoryBlock >= blockCount) {
+            throw new IllegalArgumentException("磁盘块数量太少");
+        }
+        return new DiskGeometry(true, blockSize, blockCount, fatEntryWidth, 1, fatBlockCount,
+                rootDirectoryBlock, FileConstant.SIZE_OF_WIDE_FILE);
+    }
+
+    /**
+     * 生成一个新格式磁盘的几何信息，使用能表示所有磁盘块下标的最窄的文件分配表项
+     *
+     * @param blockSize 磁盘块大小，必须是不小于64的2的幂
+     * @param blockCount 磁盘块数量
+     * @return 磁盘几何信息
+     */
+    public static DiskGeometry create(int blockSize, int blockCount) {
+        int fatEntryWidth = blockCount - 1 <= maxIndex(1) ? 1 : blockCount - 1 <= maxIndex(2) ? 2 : 4;
+        return create(blockSize, blockCount, fatEntryWidth);
+    }
+
+    /**
+     * 解析第0块磁盘块开头的超级块，没有超级块时是旧格式磁盘
+     *
+     * @param bytes 第0块磁盘块开头的字节，至少有SIZE_OF_SUPERBLOCK个字节
+     * @return 磁盘几何信息
+     * @throws IOException 超级块损坏
+     */
+    public static DiskGeometry parse(byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(0) != DiskConstant.SUPERBLOCK_MAGIC) {
+            return LEGACY;
+        }
+        if (buffer.get(4) != DiskConstant.SUPERBLOCK_VERSION) {
+            throw new IOException("不支持的超级块版本");
+        }
+        DiskGeometry geometry;
+        try {
+            geometry = create(buffer.getInt(8), buffer.getInt(12), buffer.get(5));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("超级块损坏", e);
+        }
+        if (geometry.fatStartBlock != buffer.getInt(16) || geometry.fatBlockCount != buffer.getInt(20)
+                || geometry.rootDirectoryBlock != buffer.getInt(24) || geometry.sizeOfFile != buffer.getInt(28)) {
+            throw new IOException("超级块损坏");
+        }
+        return geometry;
+    }
+
+    /**
+     * 读取磁盘文件的几何信息，用于在打开块设备之前确定磁盘块大小
+     *
+     * @param disk 磁盘文件
+     * @return 磁盘几何信息
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public static DiskGeometry read(File disk) throws IOException {
+        byte[] bytes = new byte[DiskConstant.SIZE_OF_SUPERBLOCK];
+        try (InputStream inputStream = Files.newInputStream(disk.toPath())) {
+            int length = 0;
+            for (int n; length < bytes.length && (n = inputStream.read(bytes, length, bytes.length - length)) > 0; ) {
+                length += n;
+            }
+        }
+        return parse(bytes);
+    }
+
+    /**
+     * 把超级块写到字节数组的开头，旧格式磁盘没有超级块
+     *
+     * @param bytes 第0块磁盘块的字节数组
+     */
+    public void writeSuperblock(byte[] bytes) {
+        if (!superblock) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.putInt(0, DiskConstant.SUPERBLOCK_MAGIC);
+        buffer.put(4, DiskConstant.SUPERBLOCK_VERSION);
+        buffer.put(5, (byte) fatEntryWidth);
+        buffer.putInt(8, blockSize);
+        buffer.putInt(12, blockCount);
+        buffer.putInt(16, fatStartBlock);
+        buffer.putInt(20, fatBlockCount);
+        buffer.putInt(24, rootDirectoryBlock);
+        buffer.putInt(28, sizeOfFile);
+    }
+
+    /**
+     * 从文件分配表的字节数组里读取一项，表项是有符号数，以保留FileAllocationTableConstant里的负数标志
+     *
+     * @param bytes 文件分配表的字节数组
+     * @param index 表项下标
+     * @return 表项的值
+     */
+    public int getFatEntry(byte[] bytes, int index) {
+        int offset = index * fatEntryWidth;
+        switch (fatEntryWidth) {
+            case 1:
+                return bytes[offset];
+            case 2:
+                return (short) ((bytes[offset] << 8) | (bytes[offset + 1] & 0xFF));
+            default:
+                return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                        | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        }
+    }
+
+    /**
+     * 把一个文件分配表项写入字节数组
+     *
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param value 表项的值
+     */
+    public void putFatEntry(byte[] bytes, int offset, int value) {
+        for (int i = fatEntryWidth - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
+    /**
+     * 一定宽度的有符号文件分配表项能表示的最大磁盘块下标
+     *
+     * @param fatEntryWidth 文件分配表项宽度
+     * @return 最大磁盘块下标
+     */
+    private static int maxIndex(int fatEntryWidth) {
+        return fatEntryWidth == 4 ? Integer.MAX_VALUE : (1 << (fatEntryWidth * 8 - 1)) - 1;
+    }
+
+    public boolean hasSuperblock() {
+        return superblock;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getFatEntryWidth() {
+        return fatEntryWidth;
+    }
+
+    public int getFatStartBlock() {
+        return fatStartBlock;
+    }
+
+    public int getFatBlockCount() {
+        return fatBlockCount;
+    }
+
+    public int getRootDirectoryBlock() {
+        return rootDirectoryBlock;
+    }
+
+    public int getSizeOfFile() {
+        return sizeOfFile;
+    }
+
+    /**
+     * 一个目录磁盘块能存放的文件项数量
+     *
+     * @return 文件项数量
+     */
+    public int getFileNumberOfDiskBlock() {
+        return blockSize / sizeOfFile;
+    }
+
+    /**
+     * 文件项是否记录文件的精确长度（单位字节）
+     * 新格式磁盘的文件长度有4字节，旧格式磁盘的文件长度只有1字节，仍然由文件结束标志决定
+     * 旧格式磁盘的文件内容不能包含文件结束标志，文件项里的长度也不是文件的实际长度
+     *
+     * @return 是否记录精确长度
+     */
+    public boolean hasFileLength() {
+        return sizeOfFile == FileConstant.SIZE_OF_WIDE_FILE;
+    }
+
+    @Override
+    public String toString() {
+        return "DiskGeometry{" +
+                "superblock=" + superblock +
+                ", blockSize=" + blockSize +
+                ", blockCount=" + blockCount +
+                ", fatEntryWidth=" + fatEntryWidth +
+                ", fatStartBlock=" + fatStartBlock +
+                ", fatBlockCount=" + fatBlockCount +
+                ", rootDirectoryBlock=" + rootDirectoryBlock +
+                ", sizeOfFile=" + sizeOfFile +
+                '}';
+    }
+}
@@ -3,21 +3,36 @@ package top.xiaohuashifu.filesystem.disk;
 import top.xiaohuashifu.filesystem.file.allocation.FileAllocationTable;
 import top.xiaohuashifu.filesystem.file.allocation.FileAllocationTableConstant;
 
-import java.io.*;
+import top.xiaohuashifu.filesystem.file.FileSupporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 描述: 磁盘管理器，提供磁盘操作
  * 此类不检查错误
+ * 磁盘块的读写都交给块设备，块设备可以是磁盘文件、内存映射或者纯内存，使用完毕后需要调用close()关闭
+ * 什么时候把数据强制同步到块设备的底层存储由ForcePolicy决定
+ * 磁盘块经过一个LRU缓存读写，写入的数据在被淘汰或者刷盘时才写回块设备，文件分配表所占的磁盘块一直固定在缓存中
+ * 文件分配表只持久化被修改过的表项，多次修改可以放在beginBatch()和endBatch()之间合并成一次持久化
+ * 磁盘块大小、磁盘块数量和文件分配表的位置由第0块的超级块决定，没有超级块的是旧格式磁盘，见DiskGeometry
+ * 沿着磁盘块链的顺序读取会触发异步预读，把后面的磁盘块提前读入缓存，见ReadAhead
+ * 此类可以被多个线程同时使用，磁盘块的读写由磁盘块缓存保证安全，分配和释放磁盘块使用单独的分配锁
+ * 遍历磁盘块链不加锁，调用者需要保证同一条磁盘块链不会被同时修改，也就是由文件的锁保护
  *
  * @author xhsf
  * @email 827032783@qq.com
  * @create 2019-10-29 17:22
  */
-public class DiskManager {
+public class DiskManager implements Closeable {
 
     /**
      * 文件分配表
@@ -25,13 +40,134 @@ public class DiskManager {
     public FileAllocationTable fileAllocationTable;
 
     /**
-     * 构造磁盘管理器
+     * 磁盘几何信息
+     */
+    private DiskGeometry geometry;
+
+    /**
+     * 块设备
+     */
+    private final BlockDevice blockDevice;
+
+    /**
+     * 磁盘块缓存
+     */
+    private final BlockCache blockCache;
+
+    /**
+     * 自适应预读，不使用缓存时为null
+     */
+    private final ReadAhead readAhead;
+
+    /**
+     * 刷盘策略
+     */
+    private final ForcePolicy forcePolicy;
+
+    /**
+     * 分配锁，修改和持久化文件分配表时持有
+     * 持有时会写块设备，使用ReentrantLock而不是synchronized，避免虚拟线程固定在载体线程上
+     */
+    private final ReentrantLock allocationLock = new ReentrantLock();
+
+    /**
+     * 当前线程批量更新文件分配表的嵌套层数，大于0时推迟文件分配表的持久化
+     * 每个线程单独计数，一个线程的批量更新不会推迟其它线程的持久化
+     */
+    private final ThreadLocal<int[]> batchDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * 构造磁盘管理器，使用FileChannel读写磁盘文件，只在关闭时刷盘
      *
      * @param disk 磁盘文件
      * @throws IOException IO错误，交给上一层处理
      */
     public DiskManager(File disk) throws IOException {
-        init(disk);
+        this(new FileChannelBlockDevice(disk), ForcePolicy.ON_CLOSE);
+    }
+
+    /**
+     * 构造磁盘管理器，只在关闭时刷盘
+     *
+     * @param blockDevice 块设备
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public DiskManager(BlockDevice blockDevice) throws IOException {
+        this(blockDevice, ForcePolicy.ON_CLOSE);
+    }
+
+    /**
+     * 构造磁盘管理器
+     * 磁盘管理器会接管块设备，关闭磁盘管理器时会关闭块设备
+     *
+     * @param blockDevice 块设备
+     * @param forcePolicy 刷盘策略
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public DiskManager(BlockDevice blockDevice, ForcePolicy forcePolicy) throws IOException {
+        this(blockDevice, forcePolicy, DiskConstant.DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * 构造磁盘管理器
+     * 磁盘管理器会接管块设备，关闭磁盘管理器时会关闭块设备
+     *
+     * @param blockDevice 块设备
+     * @param forcePolicy 刷盘策略
+     * @param cacheCapacity 磁盘块缓存容量，为0时不使用缓存
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public DiskManager(BlockDevice blockDevice, ForcePolicy forcePolicy, int cacheCapacity) throws IOException {
+        this.blockDevice = blockDevice;
+        this.forcePolicy = forcePolicy;
+        this.blockCache = new BlockCache(blockDevice, cacheCapacity);
+        this.readAhead = cacheCapacity == 0 ? null : new ReadAhead(this, blockCache, cacheCapacity);
+        try {
+            init();
+        } catch (IOException e) {
+            blockDevice.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 格式化块设备，写入空的文件分配表和空的根目录
+     * 块设备的大小和旧格式磁盘一样时格式化为旧格式，否则格式化为带超级块的新格式
+     *
+     * @param blockDevice 块设备
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public static void format(BlockDevice blockDevice) throws IOException {
+        DiskGeometry legacy = DiskGeometry.LEGACY;
+        if (blockDevice.getBlockSize() == legacy.getBlockSize()
+                && blockDevice.getBlockCount() == legacy.getBlockCount()) {
+            format(blockDevice, legacy);
+        } else {
+            format(blockDevice, DiskGeometry.create(blockDevice.getBlockSize(), blockDevice.getBlockCount()));
+        }
+    }
+
+    /**
+     * 按照磁盘几何信息格式化块设备，写入超级块、空的文件分配表和空的根目录
+     *
+     * @param blockDevice 块设备
+     * @param geometry 磁盘几何信息
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public static void format(BlockDevice blockDevice, DiskGeometry geometry) throws IOException {
+        checkGeometry(blockDevice, geometry);
+        int blockSize = geometry.getBlockSize();
+        byte[] bytes = new byte[(geometry.getFatStartBlock() + geometry.getFatBlockCount()) * blockSize];
+        geometry.writeSuperblock(bytes);
+        // 超级块、文件分配表所占的磁盘块和根目录磁盘块是保留块
+        int fatOffset = geometry.getFatStartBlock() * blockSize;
+        for (int i = 0; i <= geometry.getRootDirectoryBlock(); i++) {
+            geometry.putFatEntry(bytes, fatOffset + i * geometry.getFatEntryWidth(), FileAllocationTableConstant.END);
+        }
+        blockDevice.writeBlock(0, 0, bytes, 0, bytes.length);
+        byte[] root = FileSupporter.getEmptyDirectoryDiskBlock(geometry);
+        blockDevice.writeBlock(geometry.getRootDirectoryBlock(), 0, root, 0, root.length);
+        blockDevice.flush();
     }
 
     /**
@@ -41,10 +177,7 @@ public class DiskManager {
      * @throws IOException IO错误，交给上一层处理
      */
     public void writeDiskBlock(DiskBlock diskBlock) throws IOException {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(DiskConstant.DISK_FILE, "rw")) {
-            randomAccessFile.seek(diskBlock.getIndex() * DiskConstant.BLOCK_SIZE);
-            randomAccessFile.write(diskBlock.getBytes());
-        }
+        write(diskBlock.getBytes(), 0, diskBlock.getBytes().length, diskBlock.getIndex(), 0);
     }
 
     /**
@@ -57,14 +190,85 @@ public class DiskManager {
      * @param boffset 磁盘块内偏移
      * @throws IOException IO错误，交给上一层处理
      */
-    public synchronized void writeDiskBlock(byte[] bytes, int offset, int length, int diskBlockIndex, int boffset)
+    public void writeDiskBlock(byte[] bytes, int offset, int length, int diskBlockIndex, int boffset)
             throws IOException {
-        try (RandomAccessFile randomAccessFile = new RandomAccessFile(DiskConstant.DISK_FILE, "rw")) {
-            randomAccessFile.seek(diskBlockIndex * DiskConstant.BLOCK_SIZE + boffset);
-            randomAccessFile.write(bytes, offset, length);
+        write(bytes, offset, length, diskBlockIndex, boffset);
+    }
+
+    /**
+     * 批量写入多个磁盘块，最后一块可以只写开头的一部分
+     * 磁盘块按下标排序后，物理上相邻的合并成一次聚集写入，并按照刷盘策略刷盘
+     *
+     * @param diskBlockIndexes 磁盘块下标，第i块的内容是bytes[offset + i * 磁盘块大小]开始的一块
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度，不能超过磁盘块数量乘以磁盘块大小
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void writeDiskBlocks(int[] diskBlockIndexes, byte[] bytes, int offset, int length)
+            throws IOException {
+        boolean writeThrough = forcePolicy == ForcePolicy.ON_WRITE;
+        blockCache.writeBlocks(diskBlockIndexes, bytes, offset, length, writeThrough);
+        if (writeThrough) {
+            blockDevice.flush();
         }
     }
 
+    /**
+     * 读一块磁盘块里的某些字节，不复制整块磁盘块
+     *
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @param length 读取长度，不能超出该磁盘块
+     * @param diskBlockIndex 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void readDiskBlock(byte[] bytes, int offset, int length, int diskBlockIndex, int boffset)
+            throws IOException {
+        blockCache.read(diskBlockIndex, boffset, bytes, offset, length);
+    }
+
+    /**
+     * 从某个磁盘块的块内偏移处读取字节到缓冲区，读取缓冲区剩余长度和磁盘块剩余长度中较小的那个
+     * 缓冲区的position会向前移动
+     *
+     * @param dst 目标缓冲区，可以是直接缓冲区
+     * @param diskBlockIndex 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @return 实际读取的长度
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public int readDiskBlock(ByteBuffer dst, int diskBlockIndex, int boffset) throws IOException {
+        int length = Math.min(dst.remaining(), geometry.getBlockSize() - boffset);
+        blockCache.read(diskBlockIndex, boffset, dst, length);
+        return length;
+    }
+
+    /**
+     * 把缓冲区的字节写到某个磁盘块的块内偏移处，写入缓冲区剩余长度和磁盘块剩余长度中较小的那个
+     * 缓冲区的position会向前移动
+     *
+     * @param src 源缓冲区，可以是直接缓冲区
+     * @param diskBlockIndex 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @return 实际写入的长度
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public int writeDiskBlock(ByteBuffer src, int diskBlockIndex, int boffset) throws IOException {
+        int length = Math.min(src.remaining(), geometry.getBlockSize() - boffset);
+        // 堆缓冲区直接使用它的底层数组，否则复制一次
+        if (src.hasArray()) {
+            write(src.array(), src.arrayOffset() + src.position(), length, diskBlockIndex, boffset);
+            src.position(src.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            src.get(bytes);
+            write(bytes, 0, length, diskBlockIndex, boffset);
+        }
+        return length;
+    }
+
     /**
      * 把磁盘块列表写入磁盘
      *
@@ -84,8 +288,13 @@ public class DiskManager {
      * @param start 被释放的磁盘块列表的第一块
      */
     public void releaseDiskBlocksStartWith(int start) throws IOException {
-        fileAllocationTable.releaseItemsStartWith(start);
-        updateFileAllocationTable();
+        allocationLock.lock();
+        try {
+            fileAllocationTable.releaseItemsStartWith(start);
+            updateFileAllocationTable();
+        } finally {
+            allocationLock.unlock();
+        }
     }
 
     /**
@@ -96,8 +305,13 @@ public class DiskManager {
      * @throws IOException IO错误，交给上一层处理
      */
     public void releaseDiskBlocksPreviousWith(int previous) throws IOException {
-        fileAllocationTable.releaseItemsPreviousWith(previous);
-        updateFileAllocationTable();
+        allocationLock.lock();
+        try {
+            fileAllocationTable.releaseItemsPreviousWith(previous);
+            updateFileAllocationTable();
+        } finally {
+            allocationLock.unlock();
+        }
     }
 
     /**
@@ -106,8 +320,12 @@ public class DiskManager {
      * @return DiskBlock 新分配的磁盘块
      */
     public DiskBlock allocateDiskBlock() throws IOException {
-        FileAllocationTable.Item item = fileAllocationTable.allocateItem();
-        return checkAndUpdateFileAllocationTable(item);
+        allocationLock.lock();
+        try {
+            return checkAndUpdateFileAllocationTable(fileAllocationTable.allocateItem());
+        } finally {
+            allocationLock.unlock();
+        }
     }
 
     /**
@@ -117,7 +335,35 @@ public class DiskManager {
      * @return DiskBlock 新分配的磁盘块
      */
     public DiskBlock allocateDiskBlockPreviousWith(int previous) throws IOException {
-        return checkAndUpdateFileAllocationTable(fileAllocationTable.allocateItem(previous));
+        allocationLock.lock();
+        try {
+            return checkAndUpdateFileAllocationTable(fileAllocationTable.allocateItem(previous));
+        } finally {
+            allocationLock.unlock();
+        }
+    }
+
+    /**
+     * 一次分配多个磁盘块，并和上一块磁盘块链接到一起，只需要更新一次文件分配表
+     * 优先分配物理上连续的磁盘块
+     *
+     * @param previous 前一个磁盘块的下标，-1表示新分配的磁盘块链是独立的
+     * @param count 分配的磁盘块数量
+     * @return 新分配的磁盘块下标，按链接顺序排列，如果空闲磁盘块不足会返回null，此时不分配任何磁盘块
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public int[] allocateDiskBlocksPreviousWith(int previous, int count) throws IOException {
+        allocationLock.lock();
+        try {
+            int[] indexes = fileAllocationTable.allocateItems(previous, count);
+            // 分配新的磁盘块之后要更新文件分配表到磁盘
+            if (indexes != null) {
+                updateFileAllocationTable();
+            }
+            return indexes;
+        } finally {
+            allocationLock.unlock();
+        }
     }
 
     /**
@@ -148,12 +394,29 @@ public class DiskManager {
      * @throws IOException IO错误，交给上一层处理
      */
     public DiskBlock getDiskBlock(int index) throws IOException {
-        try (FileInputStream fileInputStream = new FileInputStream(DiskConstant.DISK_FILE)) {
-            fileInputStream.skip(index * DiskConstant.BLOCK_SIZE);
-            byte[] block = new byte[DiskConstant.BLOCK_SIZE];
-            fileInputStream.read(block);
-            return new DiskBlock(index, block);
-        }
+        byte[] block = new byte[geometry.getBlockSize()];
+        blockCache.read(index, block, 0);
+        return new DiskBlock(index, block);
+    }
+
+    /**
+     * 获取磁盘块链表上的下一块磁盘块的下标
+     *
+     * @param index 磁盘块下标
+     * @return 下一块磁盘块的下标，没有下一块时返回FileAllocationTableConstant.END
+     */
+    public int getNextDiskBlockIndex(int index) {
+        return fileAllocationTable.getNext(index);
+    }
+
+    /**
+     * 获取一个磁盘块链表上每一块磁盘块的下标，不读取磁盘块内容
+     *
+     * @param startIndex 起始磁盘块下标
+     * @return 磁盘块下标数组
+     */
+    public int[] getDiskBlockChain(int startIndex) {
+        return fileAllocationTable.getChain(startIndex);
     }
 
     /**
@@ -164,14 +427,40 @@ public class DiskManager {
      * @throws IOException IO错误，交给上一层处理
      */
     public List<DiskBlock> getDiskBlocksStartWith(int startIndex) throws IOException {
-        List<FileAllocationTable.Item> itemList = fileAllocationTable.getItemsStartWith(startIndex);
-        List<DiskBlock> diskBlockList = new ArrayList<>(itemList.size());
-        for (FileAllocationTable.Item item : itemList) {
-            diskBlockList.add(getDiskBlock(item.getIndex()));
+        int[] chain = fileAllocationTable.getChain(startIndex);
+        byte[] bytes = readDiskBlocks(chain);
+        int blockSize = geometry.getBlockSize();
+        List<DiskBlock> diskBlockList = new ArrayList<>(chain.length);
+        for (int i = 0; i < chain.length; i++) {
+            diskBlockList.add(new DiskBlock(chain[i], Arrays.copyOfRange(bytes, i * blockSize, (i + 1) * blockSize)));
         }
         return diskBlockList;
     }
 
+    /**
+     * 读取一个磁盘块链表到一个连续的字节数组，物理上连续的一段磁盘块只需要一次读取
+     *
+     * @param startIndex 起始磁盘块下标
+     * @return 字节数组，长度是磁盘块数量乘以磁盘块大小
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public byte[] readDiskBlocksStartWith(int startIndex) throws IOException {
+        return readDiskBlocks(fileAllocationTable.getChain(startIndex));
+    }
+
+    /**
+     * 读取物理上连续的多个磁盘块
+     *
+     * @param diskBlockIndex 第一个磁盘块的下标
+     * @param count 磁盘块数量
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void readDiskBlocks(int diskBlockIndex, int count, byte[] bytes, int offset) throws IOException {
+        blockCache.readBlocks(diskBlockIndex, count, bytes, offset);
+    }
+
     /**
      * 获取磁盘容量信息
      *
@@ -179,7 +468,7 @@ public class DiskManager {
      */
     public Map<String, Double> getDiskInfo() {
         double remainCount = fileAllocationTable.getEmptyDiskBlock();
-        double totalCount = FileAllocationTableConstant.LENGTH;
+        double totalCount = fileAllocationTable.getLength();
         double usedCount = totalCount - remainCount;
         double remainPercentage = remainCount / totalCount;
         double usedPercentage = usedCount / totalCount;
@@ -192,37 +481,219 @@ public class DiskManager {
         return map;
     }
 
+    /**
+     * 获取磁盘几何信息
+     *
+     * @return 磁盘几何信息
+     */
+    public DiskGeometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * 获取磁盘块大小
+     *
+     * @return 磁盘块大小（单位字节）
+     */
+    public int getBlockSize() {
+        return geometry.getBlockSize();
+    }
+
+    /**
+     * 固定一个磁盘块，固定的磁盘块会一直留在缓存中，用于目录这类频繁访问的磁盘块
+     *
+     * @param index 磁盘块下标
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void pinDiskBlock(int index) throws IOException {
+        blockCache.pin(index);
+    }
+
+    /**
+     * 取消固定一个磁盘块
+     *
+     * @param index 磁盘块下标
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void unpinDiskBlock(int index) throws IOException {
+        blockCache.unpin(index);
+    }
+
+    /**
+     * 获取磁盘块缓存信息，包括命中次数和未命中次数，用于调整缓存容量
+     *
+     * @return Map<String, Double> 缓存信息
+     */
+    public Map<String, Double> getCacheInfo() {
+        return blockCache.getInfo();
+    }
+
+    /**
+     * 开始批量更新文件分配表，直到对应的endBatch()之前，文件分配表的修改都不会持久化
+     * 可以嵌套调用，必须和endBatch()成对调用
+     */
+    public void beginBatch() {
+        batchDepth.get()[0]++;
+    }
+
+    /**
+     * 结束批量更新文件分配表，当前线程最外层的批量更新结束时把所有修改一次持久化
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void endBatch() throws IOException {
+        int[] depth = batchDepth.get();
+        if (depth[0] == 0) {
+            throw new IllegalStateException("没有对应的beginBatch()");
+        }
+        if (--depth[0] == 0) {
+            allocationLock.lock();
+            try {
+                updateFileAllocationTable();
+            } finally {
+                allocationLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 把缓存中的脏块写回块设备，并强制同步到底层存储
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public void force() throws IOException {
+        blockCache.flush();
+        blockDevice.flush();
+    }
+
+    /**
+     * 关闭磁盘管理器，刷盘并关闭块设备
+     *
+     * @throws IOException IO错误，交给上一层处理
+     */
+    @Override
+    public void close() throws IOException {
+        if (readAhead != null) {
+            readAhead.close();
+        }
+        try {
+            force();
+        } finally {
+            blockDevice.close();
+        }
+    }
+
+    /**
+     * 通知自适应预读读取了文件内容里物理上连续的一段磁盘块
+     * 只由文件内容的读取路径调用，目录、文件分配表和超级块的读取不参与预读
+     *
+     * @param first 第一块磁盘块的下标
+     * @param last 最后一块磁盘块的下标
+     */
+    public void onFileRead(int first, int last) {
+        if (readAhead != null) {
+            readAhead.onRead(first, last);
+        }
+    }
+
+    /**
+     * 按磁盘块链的顺序读取磁盘块到一个连续的字节数组，物理上连续的一段磁盘块只需要一次读取
+     *
+     * @param chain 磁盘块链
+     * @return 字节数组
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private byte[] readDiskBlocks(int[] chain) throws IOException {
+        int blockSize = geometry.getBlockSize();
+        byte[] bytes = new byte[chain.length * blockSize];
+        int i = 0;
+        while (i < chain.length) {
+            int j = i + 1;
+            while (j < chain.length && chain[j] == chain[j - 1] + 1) {
+                j++;
+            }
+            blockCache.readBlocks(chain[i], j - i, bytes, i * blockSize);
+            i = j;
+        }
+        return bytes;
+    }
 
     /**
      * 初始化磁盘管理器
      * 这里不考虑初始化失败的情况，也就是不考虑磁盘有问题的情况
      *
-     * @param disk 磁盘文件
      * @throws IOException IO错误，交给上一层处理
      */
-    private void init(File disk) throws IOException {
-        try (InputStream inputStream = new FileInputStream(disk)) {
-            byte[] bytes = new byte[FileAllocationTableConstant.LENGTH];
-            inputStream.read(bytes);
-            fileAllocationTable = new FileAllocationTable(bytes);
+    private void init() throws IOException {
+        byte[] superblock = new byte[Math.max(blockDevice.getBlockSize(), DiskConstant.SIZE_OF_SUPERBLOCK)];
+        blockCache.read(0, superblock, 0);
+        geometry = DiskGeometry.parse(superblock);
+        checkGeometry(blockDevice, geometry);
+
+        // 读取文件分配表所占的磁盘块，并固定在缓存中
+        int blockSize = geometry.getBlockSize();
+        byte[] bytes = new byte[geometry.getFatBlockCount() * blockSize];
+        for (int i = 0; i < geometry.getFatBlockCount(); i++) {
+            blockCache.pin(geometry.getFatStartBlock() + i);
+            blockCache.read(geometry.getFatStartBlock() + i, bytes, i * blockSize);
+        }
+        int[] items = new int[geometry.getBlockCount()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = geometry.getFatEntry(bytes, i);
+        }
+        fileAllocationTable = new FileAllocationTable(items, geometry.getRootDirectoryBlock());
+    }
+
+    /**
+     * 检查块设备和磁盘几何信息是否一致
+     *
+     * @param blockDevice 块设备
+     * @param geometry 磁盘几何信息
+     * @throws IOException 块设备和磁盘几何信息不一致
+     */
+    private static void checkGeometry(BlockDevice blockDevice, DiskGeometry geometry) throws IOException {
+        if (blockDevice.getBlockSize() != geometry.getBlockSize()) {
+            throw new IOException("块设备的磁盘块大小和超级块不一致");
+        }
+        if (blockDevice.getBlockCount() < geometry.getBlockCount()) {
+            throw new IOException("块设备的磁盘块数量少于超级块");
+        }
+    }
+
+    /**
+     * 把字节数组写入磁盘，并按照刷盘策略刷盘
+     *
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度
+     * @param diskBlockIndex 磁盘块下标
+     * @param boffset 磁盘块内偏移
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private void write(byte[] bytes, int offset, int length, int diskBlockIndex, int boffset) throws IOException {
+        // 每次写都刷盘时直接写穿缓存
+        boolean writeThrough = forcePolicy == ForcePolicy.ON_WRITE;
+        blockCache.write(diskBlockIndex, boffset, bytes, offset, length, writeThrough);
+        if (writeThrough) {
+            blockDevice.flush();
         }
     }
 
     /**
      * 检查并更新文件分配表
      *
-     * @param item 文件分配表项
+     * @param index 新分配的文件分配表项下标，-1表示没有分配到
      * @return DiskBlock 新分配的磁盘块
      */
-    private DiskBlock checkAndUpdateFileAllocationTable(FileAllocationTable.Item item) throws IOException {
+    private DiskBlock checkAndUpdateFileAllocationTable(int index) throws IOException {
         // 已经没有空闲磁盘块
-        if (item == null) {
+        if (index == -1) {
             return null;
         }
 
         DiskBlock diskBlock = null;
         try {
-            diskBlock = getDiskBlock(item.getIndex());
+            diskBlock = getDiskBlock(index);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -232,15 +703,26 @@ public class DiskManager {
     }
 
     /**
-     * 更新文件分配表到磁盘
+     * 更新文件分配表到磁盘，只写被修改过的表项
+     * 当前线程批量更新文件分配表时推迟到批量更新结束，调用者需要持有分配锁
      */
     private void updateFileAllocationTable() throws IOException {
-        for (int i = 0, j = 0; i < 2; i++) {
-            byte[] bytes = new byte[DiskConstant.BLOCK_SIZE];
-            for (int k = 0; k < DiskConstant.BLOCK_SIZE; k++, j++) {
-                bytes[k] = (byte) fileAllocationTable.getItem(j).getNext();
-            }
-            writeDiskBlock(new DiskBlock(i, bytes));
+        if (batchDepth.get()[0] > 0 || !fileAllocationTable.isDirty()) {
+            return;
+        }
+        int from = fileAllocationTable.getFirstDirtyIndex();
+        int width = geometry.getFatEntryWidth();
+        byte[] bytes = new byte[(fileAllocationTable.getLastDirtyIndex() - from + 1) * width];
+        for (int i = 0, offset = 0; offset < bytes.length; i++, offset += width) {
+            geometry.putFatEntry(bytes, offset, fileAllocationTable.getNext(from + i));
+        }
+        // 表项可能跨越多块磁盘块，写缓存时会按磁盘块拆分
+        int position = from * width;
+        write(bytes, 0, bytes.length, geometry.getFatStartBlock() + position / geometry.getBlockSize(),
+                position % geometry.getBlockSize());
+        fileAllocationTable.clearDirty();
+        if (forcePolicy == ForcePolicy.ON_FAT_UPDATE) {
+            force();
         }
     }
 
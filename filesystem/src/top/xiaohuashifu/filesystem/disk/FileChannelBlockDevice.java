@@ -0,0 +1,132 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 描述: 基于FileChannel的块设备
+ * 磁盘文件在构造时打开并一直持有，每次读写磁盘块只需要一次基于位置的读写
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 16:55
+ */
+public class FileChannelBlockDevice extends AbstractBlockDevice {
+
+    /**
+     * 磁盘文件的通道
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * 聚集写入的锁，聚集写入会修改通道的当前位置
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * 打开磁盘文件，磁盘块大小从超级块读取，没有超级块时使用旧格式的磁盘块大小
+     *
+     * @param disk 磁盘文件
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public FileChannelBlockDevice(File disk) throws IOException {
+        this(disk, DiskGeometry.read(disk).getBlockSize());
+    }
+
+    /**
+     * 打开磁盘文件
+     *
+     * @param disk 磁盘文件
+     * @param blockSize 磁盘块大小
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public FileChannelBlockDevice(File disk, int blockSize) throws IOException {
+        this(FileChannel.open(disk.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE), blockSize);
+    }
+
+    private FileChannelBlockDevice(FileChannel fileChannel, int blockSize) throws IOException {
+        super(blockSize, countBlocks(fileChannel, blockSize));
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public void readBlock(int index, byte[] bytes, int offset) throws IOException {
+        readBlocks(index, 1, bytes, offset);
+    }
+
+    @Override
+    public void readBlocks(int index, int count, byte[] bytes, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, count * blockSize);
+        long position = position(index, 0, count * blockSize);
+        while (buffer.hasRemaining()) {
+            int n = fileChannel.read(buffer, position);
+            // 读到了磁盘末尾
+            if (n < 0) {
+                throw new EOFException("读取位置超出磁盘大小");
+            }
+            position += n;
+        }
+    }
+
+    @Override
+    public void writeBlock(int index, int boffset, byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        long position = position(index, boffset, length);
+        while (buffer.hasRemaining()) {
+            position += fileChannel.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void writeBlocks(int index, ByteBuffer[] srcs) throws IOException {
+        lock.lock();
+        try {
+            long length = remaining(srcs);
+            long end = position(index, 0, (int) length) + length;
+            // 聚集写入使用通道的当前位置，只在这里修改通道的位置
+            fileChannel.position(end - length);
+            while (fileChannel.position() < end) {
+                fileChannel.write(srcs);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    /**
+     * 计算磁盘文件的磁盘块数量，失败时关闭通道
+     *
+     * @param fileChannel 磁盘文件的通道
+     * @param blockSize 磁盘块大小
+     * @return 磁盘块数量
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private static int countBlocks(FileChannel fileChannel, int blockSize) throws IOException {
+        try {
+            int blockCount = (int) (fileChannel.size() / blockSize);
+            if (blockCount <= 0) {
+                throw new IllegalArgumentException("磁盘文件为空");
+            }
+            return blockCount;
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package top.xiaohuashifu.filesystem.disk;
+
+/**
+ * 描述: 刷盘策略，决定写入的数据什么时候被强制同步到物理磁盘
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 10:12
+ */
+public enum ForcePolicy {
+    /**
+     * 只在关闭磁盘管理器或者显式调用force()时刷盘
+     */
+    ON_CLOSE,
+
+    /**
+     * 每次更新文件分配表之后刷盘
+     */
+    ON_FAT_UPDATE,
+
+    /**
+     * 每次写磁盘之后都刷盘
+     */
+    ON_WRITE
+}
@@ -0,0 +1,77 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 描述: 基于堆内字节数组的块设备，数据只存在于内存中
+ * 用于测试和基准测试，多个实例之间互不影响
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 16:05
+ */
+public class HeapBlockDevice extends AbstractBlockDevice {
+
+    /**
+     * 磁盘内容
+     */
+    private final byte[] disk;
+
+    /**
+     * 构造一个全零的内存磁盘
+     *
+     * @param blockSize 磁盘块大小
+     * @param blockCount 磁盘块数量
+     */
+    public HeapBlockDevice(int blockSize, int blockCount) {
+        super(blockSize, blockCount);
+        this.disk = new byte[blockSize * blockCount];
+    }
+
+    /**
+     * 使用一个磁盘镜像构造内存磁盘，会复制镜像的内容
+     *
+     * @param image 磁盘镜像
+     * @param blockSize 磁盘块大小
+     */
+    public HeapBlockDevice(byte[] image, int blockSize) {
+        super(blockSize, image.length / blockSize);
+        this.disk = new byte[blockSize * blockCount];
+        System.arraycopy(image, 0, disk, 0, disk.length);
+    }
+
+    @Override
+    public void readBlock(int index, byte[] bytes, int offset) throws IOException {
+        System.arraycopy(disk, (int) position(index, 0, blockSize), bytes, offset, blockSize);
+    }
+
+    @Override
+    public void readBlocks(int index, int count, byte[] bytes, int offset) throws IOException {
+        System.arraycopy(disk, (int) position(index, 0, count * blockSize), bytes, offset, count * blockSize);
+    }
+
+    @Override
+    public void writeBlock(int index, int boffset, byte[] bytes, int offset, int length) throws IOException {
+        System.arraycopy(bytes, offset, disk, (int) position(index, boffset, length), length);
+    }
+
+    @Override
+    public void writeBlocks(int index, ByteBuffer[] srcs) throws IOException {
+        int position = (int) position(index, 0, remaining(srcs));
+        for (ByteBuffer src : srcs) {
+            int length = src.remaining();
+            src.get(disk, position, length);
+            position += length;
+        }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,76 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 描述: 把整个磁盘文件映射到内存的块设备
+ * 读写磁盘块都只是内存拷贝，flush()时才把脏页同步到磁盘文件
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-06 16:42
+ */
+public class MappedBlockDevice extends ByteBufferBlockDevice {
+
+    /**
+     * 磁盘文件的通道
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * 映射磁盘文件，磁盘块大小从超级块读取，没有超级块时使用旧格式的磁盘块大小
+     *
+     * @param disk 磁盘文件
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public MappedBlockDevice(File disk) throws IOException {
+        this(disk, DiskGeometry.read(disk).getBlockSize());
+    }
+
+    /**
+     * 映射磁盘文件
+     *
+     * @param disk 磁盘文件
+     * @param blockSize 磁盘块大小
+     * @throws IOException IO错误，交给上一层处理
+     */
+    public MappedBlockDevice(File disk, int blockSize) throws IOException {
+        this(FileChannel.open(disk.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE), blockSize);
+    }
+
+    private MappedBlockDevice(FileChannel fileChannel, int blockSize) throws IOException {
+        super(map(fileChannel), blockSize);
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public void flush() {
+        ((MappedByteBuffer) buffer).force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+    /**
+     * 映射整个磁盘文件，映射失败时关闭通道
+     *
+     * @param fileChannel 磁盘文件的通道
+     * @return 内存映射
+     * @throws IOException IO错误，交给上一层处理
+     */
+    private static MappedByteBuffer map(FileChannel fileChannel) throws IOException {
+        try {
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, fileChannel.size());
+        } catch (IOException | RuntimeException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+}
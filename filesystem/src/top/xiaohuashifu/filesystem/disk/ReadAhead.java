@@ -0,0 +1,271 @@
+package top.xiaohuashifu.filesystem.disk;
+
+import top.xiaohuashifu.filesystem.file.allocation.FileAllocationTableConstant;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述: 自适应预读，发现沿着磁盘块链的顺序读取时，异步把后面的若干块磁盘块读入磁盘块缓存
+ * 同时跟踪多个顺序读取，每个顺序读取以它期望读取的下一块磁盘块为键
+ * 预读窗口根据预读命中率调整，命中率高时加倍，命中率低时减半
+ * 只跟踪文件内容的读取，记录读取时不持有全局的锁，并发的读取不会互相等待
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-12 09:30
+ */
+public class ReadAhead {
+
+    /**
+     * 连续读取多少块之后认为是顺序读取
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+
+    /**
+     * 最多同时跟踪的顺序读取数量
+     */
+    private static final int MAX_STREAMS = 16;
+
+    /**
+     * 最小预读窗口（单位磁盘块）
+     */
+    private static final int MIN_WINDOW = 1;
+
+    /**
+     * 初始预读窗口（单位磁盘块）
+     */
+    private static final int INITIAL_WINDOW = 4;
+
+    /**
+     * 命中率高于此值时扩大预读窗口
+     */
+    private static final double GROW_HIT_RATE = 0.75;
+
+    /**
+     * 命中率低于此值时缩小预读窗口
+     */
+    private static final double SHRINK_HIT_RATE = 0.25;
+
+    /**
+     * 磁盘管理器，用于沿着文件分配表找下一块磁盘块
+     */
+    private final DiskManager diskManager;
+
+    /**
+     * 磁盘块缓存，预读的磁盘块放在这里
+     */
+    private final BlockCache blockCache;
+
+    /**
+     * 预读线程
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 最大预读窗口，不超过缓存容量的一半
+     */
+    private final int maxWindow;
+
+    /**
+     * 正在跟踪的顺序读取，键是期望读取的下一块磁盘块，超出数量时淘汰任意一个
+     * 从表中移除一个顺序读取的线程独占它，更新之后再放回去
+     */
+    private final Map<Integer, Stream> streams;
+
+    /**
+     * 当前的预读窗口（单位磁盘块）
+     */
+    private final AtomicInteger window;
+
+    /**
+     * 上一次调整窗口时的预读数量
+     */
+    private long lastPrefetchCount;
+
+    /**
+     * 上一次调整窗口时的预读命中数量
+     */
+    private long lastPrefetchHitCount;
+
+    /**
+     * 构造自适应预读
+     *
+     * @param diskManager 磁盘管理器
+     * @param blockCache 磁盘块缓存，容量不能为0
+     * @param cacheCapacity 磁盘块缓存容量
+     */
+    ReadAhead(DiskManager diskManager, BlockCache blockCache, int cacheCapacity) {
+        this.diskManager = diskManager;
+        this.blockCache = blockCache;
+        this.maxWindow = Math.max(MIN_WINDOW, cacheCapacity / 2);
+        this.window = new AtomicInteger(Math.min(INITIAL_WINDOW, maxWindow));
+        this.streams = new ConcurrentHashMap<>();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 记录一次文件内容的读取，读取的是物理上连续的一段磁盘块
+     * 如果接着某个顺序读取，并且预读的磁盘块快用完了，就异步预读后面的一个窗口
+     *
+     * @param first 第一块磁盘块的下标
+     * @param last 最后一块磁盘块的下标
+     */
+    public void onRead(int first, int last) {
+        int next = diskManager.getNextDiskBlockIndex(last);
+        Stream stream = streams.remove(first);
+        // 磁盘块链已经读完，或者磁盘块已经被同时进行的截短释放
+        if (next <= FileAllocationTableConstant.EMPTY) {
+            return;
+        }
+        if (stream == null) {
+            // 同一块磁盘块的多次读取不打断已有的顺序读取
+            if (streams.containsKey(next)) {
+                return;
+            }
+            stream = new Stream();
+        } else {
+            stream.sequentialCount++;
+            stream.ahead = Math.max(0, stream.ahead - (last - first + 1));
+        }
+        if (stream.sequentialCount >= SEQUENTIAL_THRESHOLD && stream.ahead <= window.get() / 2) {
+            int window = adjustWindow();
+            int start = stream.ahead > 0 ? stream.lastPrefetched : last;
+            int[] indexes = collect(start, window - stream.ahead);
+            if (indexes.length > 0) {
+                stream.lastPrefetched = indexes[indexes.length - 1];
+                stream.ahead += indexes.length;
+                submit(indexes);
+            }
+        }
+        streams.put(next, stream);
+        // 跟踪的顺序读取太多时淘汰任意一个
+        if (streams.size() > MAX_STREAMS) {
+            Iterator<Integer> iterator = streams.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() != next) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取当前的预读窗口
+     *
+     * @return 预读窗口（单位磁盘块）
+     */
+    public int getWindow() {
+        return window.get();
+    }
+
+    /**
+     * 关闭预读线程，等待正在进行的预读结束
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 沿着文件分配表收集某一块磁盘块后面的若干块磁盘块，遇到链表结尾或者已经释放的磁盘块时停止
+     *
+     * @param start 起始磁盘块的下标，不包括它本身
+     * @param count 最多收集的数量
+     * @return 磁盘块下标
+     */
+    private int[] collect(int start, int count) {
+        int[] indexes = new int[Math.max(0, count)];
+        int n = 0;
+        int index = diskManager.getNextDiskBlockIndex(start);
+        while (n < indexes.length && index > FileAllocationTableConstant.EMPTY) {
+            indexes[n++] = index;
+            index = diskManager.getNextDiskBlockIndex(index);
+        }
+        return Arrays.copyOf(indexes, n);
+    }
+
+    /**
+     * 提交一次异步预读，磁盘管理器关闭之后的预读会被忽略
+     *
+     * @param indexes 磁盘块下标
+     */
+    private void submit(int[] indexes) {
+        try {
+            executor.execute(() -> {
+                try {
+                    blockCache.prefetch(indexes);
+                } catch (IOException ignored) {
+                    // 预读失败不影响正常读取
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // 已经关闭
+        }
+    }
+
+    /**
+     * 根据上一次调整之后的预读命中率调整预读窗口，只在需要预读时调用
+     *
+     * @return 调整之后的预读窗口
+     */
+    private synchronized int adjustWindow() {
+        int window = this.window.get();
+        long prefetchCount = blockCache.getPrefetchCount();
+        long prefetchHitCount = blockCache.getPrefetchHitCount();
+        long prefetched = prefetchCount - lastPrefetchCount;
+        // 样本太少时不调整
+        if (prefetched < window) {
+            return window;
+        }
+        double hitRate = (double) (prefetchHitCount - lastPrefetchHitCount) / prefetched;
+        if (hitRate >= GROW_HIT_RATE) {
+            window = Math.min(window * 2, maxWindow);
+        } else if (hitRate < SHRINK_HIT_RATE) {
+            window = Math.max(window / 2, MIN_WINDOW);
+        }
+        this.window.set(window);
+        lastPrefetchCount = prefetchCount;
+        lastPrefetchHitCount = prefetchHitCount;
+        return window;
+    }
+
+    /**
+     * 一个顺序读取
+     */
+    private static class Stream {
+
+        /**
+         * 连续读取的次数
+         */
+        private int sequentialCount;
+
+        /**
+         * 已经预读但还没读到的磁盘块数量
+         */
+        private int ahead;
+
+        /**
+         * 最后一块预读的磁盘块的下标
+         */
+        private int lastPrefetched;
+    }
+
+}
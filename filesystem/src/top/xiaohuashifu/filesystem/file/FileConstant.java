@@ -72,6 +72,21 @@ public class FileConstant {
      */
     public static final int SIZE_OF_FILE = 8;
 
+    /**
+     * 新格式磁盘一个文件项的大小（单位字节），起始磁盘块号和文件长度都是4字节
+     */
+    public static final int SIZE_OF_WIDE_FILE = 16;
+
+    /**
+     * 新格式磁盘文件项中起始磁盘块号的偏移量
+     */
+    public static final int OFFSET_OF_WIDE_FIRST_DISK_BLOCK_INDEX = 8;
+
+    /**
+     * 新格式磁盘文件项中文件长度的偏移量，文件长度是精确的字节数
+     */
+    public static final int OFFSET_OF_WIDE_LENGTH = 12;
+
     /**
      * 一个目录的最大文件数
      */
@@ -98,7 +113,7 @@ public class FileConstant {
     public static final int MAX_LENGTH_OF_FILE_TYPE = 2;
 
     /**
-     * 文件结束标志
+     * 文件结束标志，只在不记录文件长度的旧格式磁盘上使用
      */
     public static final byte END_OF_FILE = -1;
 
@@ -1,16 +1,18 @@
 package top.xiaohuashifu.filesystem.file;
 
 import top.xiaohuashifu.filesystem.disk.DiskBlock;
-import top.xiaohuashifu.filesystem.disk.DiskConstant;
+import top.xiaohuashifu.filesystem.disk.DiskGeometry;
 import top.xiaohuashifu.filesystem.util.ByteUtils;
 import top.xiaohuashifu.filesystem.util.Pair;
 import top.xiaohuashifu.filesystem.util.StringUtils;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * 描述: 文件操作的辅助类，为文件操作提供各种解析方法
+ * 文件项的格式由磁盘几何信息决定，不带磁盘几何信息的方法按旧格式磁盘解析
  *
  * @author xhsf
  * @email 827032783@qq.com
@@ -44,14 +46,26 @@ public class FileSupporter {
      * @return List<File> 文件列表
      */
     public static List<File> parseDiskBlockToFileList(DiskBlock diskBlock) {
+        return parseDiskBlockToFileList(diskBlock, DiskGeometry.LEGACY);
+    }
+
+    /**
+     * 把磁盘块解析成文件列表
+     *
+     * @param diskBlock 磁盘块
+     * @param geometry 磁盘几何信息
+     * @return List<File> 文件列表
+     */
+    public static List<File> parseDiskBlockToFileList(DiskBlock diskBlock, DiskGeometry geometry) {
         byte[] bytes = diskBlock.getBytes();
+        int sizeOfFile = geometry.getSizeOfFile();
         List<File> fileList = new ArrayList<>();
-        for (int i = 0; i < bytes.length / FileConstant.SIZE_OF_FILE; i++) {
+        for (int i = 0; i < bytes.length / sizeOfFile; i++) {
             // 空文件
-            if (bytes[i * FileConstant.SIZE_OF_FILE] == FileConstant.EMPTY_FILE_SYMBOL) {
+            if (bytes[i * sizeOfFile] == FileConstant.EMPTY_FILE_SYMBOL) {
                 continue;
             }
-            fileList.add(createFileByBytes(bytes, i * FileConstant.SIZE_OF_FILE));
+            fileList.add(createFileByBytes(bytes, i * sizeOfFile, geometry));
         }
         return fileList;
     }
@@ -64,14 +78,35 @@ public class FileSupporter {
      * @return File 文件
      */
     public static File createFileByBytes(byte[] bytes, int offset) {
+        return createFileByBytes(bytes, offset, DiskGeometry.LEGACY);
+    }
+
+    /**
+     * 通过一个字节数组创建一个文件
+     *
+     * @param bytes 字节数组
+     * @param offset 字节数字的读取偏移量
+     * @param geometry 磁盘几何信息
+     * @return File 文件
+     */
+    public static File createFileByBytes(byte[] bytes, int offset, DiskGeometry geometry) {
         String name = ByteUtils.bytesToString(bytes, offset, FileConstant.SIZE_OF_NAME).trim();
         String type = ByteUtils.bytesToString(bytes, offset + FileConstant.SIZE_OF_NAME, FileConstant.SIZE_OF_TYPE).trim();
         FileAttribute fileAttribute = createFileAttributeByByte(bytes[offset + FileConstant.SIZE_OF_NAME
                 + FileConstant.SIZE_OF_TYPE]);
-        int firstDiskBlockIndex = bytes[offset + FileConstant.SIZE_OF_NAME + FileConstant.SIZE_OF_TYPE
-                + FileConstant.SIZE_OF_ATTRIBUTE];
-        int length = bytes[offset + FileConstant.SIZE_OF_NAME + FileConstant.SIZE_OF_TYPE
-                + FileConstant.SIZE_OF_ATTRIBUTE + FileConstant.SIZE_OF_FIRST_DISK_BLOCK_INDEX];
+        int firstDiskBlockIndex;
+        int length;
+        // 新格式的起始磁盘块号和文件长度都是4字节
+        if (geometry.getSizeOfFile() == FileConstant.SIZE_OF_WIDE_FILE) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            firstDiskBlockIndex = buffer.getInt(offset + FileConstant.OFFSET_OF_WIDE_FIRST_DISK_BLOCK_INDEX);
+            length = buffer.getInt(offset + FileConstant.OFFSET_OF_WIDE_LENGTH);
+        } else {
+            firstDiskBlockIndex = bytes[offset + FileConstant.SIZE_OF_NAME + FileConstant.SIZE_OF_TYPE
+                    + FileConstant.SIZE_OF_ATTRIBUTE];
+            length = bytes[offset + FileConstant.SIZE_OF_NAME + FileConstant.SIZE_OF_TYPE
+                    + FileConstant.SIZE_OF_ATTRIBUTE + FileConstant.SIZE_OF_FIRST_DISK_BLOCK_INDEX];
+        }
         return new File(name, type, fileAttribute, firstDiskBlockIndex, length);
     }
 
@@ -97,7 +132,18 @@ public class FileSupporter {
      * @return byte[] 字节数组
      */
     public static byte[] parseFileToBytes(File file) {
-        byte[] bytes = new byte[FileConstant.SIZE_OF_FILE];
+        return parseFileToBytes(file, DiskGeometry.LEGACY);
+    }
+
+    /**
+     * 把一个文件解析成字节数组
+     *
+     * @param file 文件
+     * @param geometry 磁盘几何信息
+     * @return byte[] 字节数组
+     */
+    public static byte[] parseFileToBytes(File file, DiskGeometry geometry) {
+        byte[] bytes = new byte[geometry.getSizeOfFile()];
         int i = 0;
         // 解析文件名
         byte[] name = file.getName().getBytes();
@@ -120,6 +166,13 @@ public class FileSupporter {
         }
         // 解析文件属性
         bytes[i++] = parseFileAttributeToByte(file.getFileAttribute());
+        // 新格式的起始磁盘块下标和文件长度都是4字节
+        if (geometry.getSizeOfFile() == FileConstant.SIZE_OF_WIDE_FILE) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            buffer.putInt(FileConstant.OFFSET_OF_WIDE_FIRST_DISK_BLOCK_INDEX, file.getFirstDiskBlockIndex());
+            buffer.putInt(FileConstant.OFFSET_OF_WIDE_LENGTH, file.getLength());
+            return bytes;
+        }
         // 文件起始磁盘块下标
         bytes[i++] = (byte) file.getFirstDiskBlockIndex();
         // 文件长度
@@ -208,9 +261,18 @@ public class FileSupporter {
      * @return byte[] 空目录磁盘块
      */
     public static byte[] getEmptyDirectoryDiskBlock() {
-        byte[] bytes = new byte[DiskConstant.BLOCK_SIZE];
+        return getEmptyDirectoryDiskBlock(DiskGeometry.LEGACY);
+    }
+
+    /**
+     * 生成一个空的目录磁盘块
+     * @param geometry 磁盘几何信息
+     * @return byte[] 空目录磁盘块
+     */
+    public static byte[] getEmptyDirectoryDiskBlock(DiskGeometry geometry) {
+        byte[] bytes = new byte[geometry.getBlockSize()];
         for (int i = 0; i < bytes.length; i++) {
-            if (i % 8 == 0) {
+            if (i % geometry.getSizeOfFile() == 0) {
                 bytes[i] = FileConstant.EMPTY_FILE_SYMBOL;
             } else {
                 bytes[i] = 0;
@@ -258,16 +320,29 @@ public class FileSupporter {
      * @return 目录磁盘块内的下标
      */
     public static int getDiskBlockIndexOfFile(byte[] bytes, File file) {
-        byte[] fileBytes = parseFileToBytes(file);
-        for (int i = 0; i < DiskConstant.BLOCK_SIZE / FileConstant.SIZE_OF_FILE; i++) {
+        return getDiskBlockIndexOfFile(bytes, file, DiskGeometry.LEGACY);
+    }
+
+    /**
+     * 获得一个文件在目录磁盘块内的下标
+     *
+     * @param bytes 磁盘块
+     * @param file 文件
+     * @param geometry 磁盘几何信息
+     * @return 目录磁盘块内的下标
+     */
+    public static int getDiskBlockIndexOfFile(byte[] bytes, File file, DiskGeometry geometry) {
+        byte[] fileBytes = parseFileToBytes(file, geometry);
+        int sizeOfFile = geometry.getSizeOfFile();
+        for (int i = 0; i < bytes.length / sizeOfFile; i++) {
             int j;
-            for (j = 0; j < FileConstant.SIZE_OF_FILE; j++) {
-                if (!(bytes[i * FileConstant.SIZE_OF_FILE + j] == fileBytes[j])) {
+            for (j = 0; j < sizeOfFile; j++) {
+                if (!(bytes[i * sizeOfFile + j] == fileBytes[j])) {
                      break;
                 }
             }
-            if (j == FileConstant.SIZE_OF_FILE) {
-                return i * FileConstant.SIZE_OF_FILE;
+            if (j == sizeOfFile) {
+                return i * sizeOfFile;
             }
         }
         return -1;
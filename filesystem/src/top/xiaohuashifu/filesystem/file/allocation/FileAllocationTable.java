@@ -1,10 +1,17 @@
 package top.xiaohuashifu.filesystem.file.allocation;
 
 import java.util.*;
+import java.util.function.IntConsumer;
 
 /**
  * 描述: 文件分配表
  * 此类不保证操作的安全性，不声明任何显式异常
+ * 多线程使用时，DiskManager在修改表项时持有分配锁，遍历表项不加锁，所以表项数组只会被整项读写
+ * 空闲表项另外使用一个位图和计数器维护，分配和统计空闲磁盘块都不需要扫描整个文件分配表
+ * 文件分配表使用int数组存放，分配、释放和遍历磁盘块链都不会创建对象，Item只作为兼容旧接口的视图
+ * 一次分配多个表项时优先分配物理上连续的表项，让大文件的读写尽量是顺序的
+ * 被修改过的表项的下标范围会被记录下来，持久化时只需要写这个范围
+ * 超级块和文件分配表所占的磁盘块是保留项，保留项的数量由磁盘几何信息决定
  *
  * @author xhsf
  * @email 827032783@qq.com
@@ -13,53 +20,157 @@ import java.util.*;
 public class FileAllocationTable {
 
     /**
-     * 文件分配表项数组
+     * 文件分配表，第i项是第i块磁盘块的下一块磁盘块下标
      */
-    public Item[] items;
+    private int[] items;
+
+    /**
+     * 空闲表项位图，第i位为1表示第i项空闲，文件分配表所占的保留项永远不是空闲的
+     */
+    private long[] freeBitmap;
+
+    /**
+     * 空闲表项数量
+     */
+    private int freeCount;
+
+    /**
+     * 第一个可能含有空闲表项的位图字下标，在它之前的位图字都没有空闲表项
+     */
+    private int firstFreeWord;
+
+    /**
+     * 被修改过且还没有持久化的表项的最小下标，没有被修改过的表项时为-1
+     */
+    private int firstDirtyIndex = -1;
+
+    /**
+     * 被修改过且还没有持久化的表项的最大下标，没有被修改过的表项时为-1
+     */
+    private int lastDirtyIndex = -1;
+
+    /**
+     * 保留项数量，下标小于它的表项是超级块和文件分配表所占的磁盘块
+     */
+    private final int reservedCount;
 
     /**
      * 初始化文件分配表，包括初始化保留项
      * @param items 文件分配表的字节数组
      */
     public FileAllocationTable(byte[] items) {
+        this.reservedCount = FileAllocationTableConstant.NUMBER_OF_FAT_DISK_BLOCKS;
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = items[i];
+        }
+        init(values);
+    }
+
+    /**
+     * 初始化文件分配表，包括初始化保留项
+     * @param items 文件分配表项，数组会被文件分配表直接持有
+     * @param reservedCount 保留项数量
+     */
+    public FileAllocationTable(int[] items, int reservedCount) {
+        this.reservedCount = reservedCount;
         init(items);
     }
 
     /**
-     * 获取以startIndex为起点的文件分配表项列表
+     * 获取文件分配表长度
+     *
+     * @return 文件分配表长度
+     */
+    public int getLength() {
+        return items.length;
+    }
+
+    /**
+     * 获取一个文件分配表项的下一项下标
+     *
+     * @param index 文件分配表项下标
+     * @return 下一项下标，或者FileAllocationTableConstant里的标志
+     */
+    public int getNext(int index) {
+        return items[index];
+    }
+
+    /**
+     * 获取以startIndex为起点的磁盘块链
      *
      * @param startIndex 文件分配表起点下标
-     * @return startIndex为起点的文件分配表项列表
+     * @return 磁盘块链上每一块磁盘块的下标
      */
-    public List<Item> getItemsStartWith(int startIndex) {
-        // 该下标指向文件分配表项
-        if (startIndex < FileAllocationTableConstant.NUMBER_OF_FAT_DISK_BLOCKS) {
-            return Collections.singletonList(getItem(startIndex));
+    public int[] getChain(int startIndex) {
+        int[] chain = new int[getChainLength(startIndex)];
+        int i = 0;
+        for (int index = startIndex; i < chain.length; index = items[index]) {
+            chain[i++] = index;
         }
+        return chain;
+    }
 
-        // 该磁盘分配表项指向空盘块
-        if (getItem(startIndex).getNext() == FileAllocationTableConstant.EMPTY) {
-            return Collections.singletonList(getItem(startIndex));
+    /**
+     * 获取以startIndex为起点的磁盘块链的长度
+     *
+     * @param startIndex 文件分配表起点下标
+     * @return 磁盘块链的长度
+     */
+    public int getChainLength(int startIndex) {
+        // 该下标指向文件分配表项，或者该磁盘分配表项指向空盘块
+        if (startIndex < reservedCount
+                || items[startIndex] == FileAllocationTableConstant.EMPTY) {
+            return 1;
+        }
+        int length = 1;
+        for (int index = startIndex; items[index] != FileAllocationTableConstant.END; index = items[index]) {
+            length++;
         }
+        return length;
+    }
 
-        // 生成该文件的盘块链
-        List<Item> itemList = new ArrayList<>();
-        Item item = getItem(startIndex);
-        itemList.add(item);
-        while (item.getNext() != FileAllocationTableConstant.END) {
-            item = getItem(item.getNext());
-            itemList.add(item);
+    /**
+     * 按顺序访问以startIndex为起点的磁盘块链上的每一块磁盘块
+     *
+     * @param startIndex 文件分配表起点下标
+     * @param visitor 访问者，参数是磁盘块下标
+     */
+    public void forEachInChain(int startIndex, IntConsumer visitor) {
+        visitor.accept(startIndex);
+        // 该下标指向文件分配表项，或者该磁盘分配表项指向空盘块
+        if (startIndex < reservedCount
+                || items[startIndex] == FileAllocationTableConstant.EMPTY) {
+            return;
+        }
+        for (int index = startIndex; items[index] != FileAllocationTableConstant.END; ) {
+            index = items[index];
+            visitor.accept(index);
         }
+    }
+
+    /**
+     * 获取以startIndex为起点的文件分配表项列表
+     * 兼容旧接口，会为每一项创建Item视图，新代码应使用getChain()或forEachInChain()
+     *
+     * @param startIndex 文件分配表起点下标
+     * @return startIndex为起点的文件分配表项列表
+     */
+    public List<Item> getItemsStartWith(int startIndex) {
+        List<Item> itemList = new ArrayList<>();
+        forEachInChain(startIndex, index -> itemList.add(getItem(index)));
         return itemList;
     }
 
     /**
-     * 获取一个文件分配表项
+     * 获取一个文件分配表项的视图
+     * 兼容旧接口，新代码应使用getNext()
+     *
      * @param index 文件分配表项下标
      * @return 文件分配表项
      */
     public Item getItem(int index) {
-        return items[index];
+        return new Item(index, items[index]);
     }
 
     /**
@@ -67,47 +178,86 @@ public class FileAllocationTable {
      * 该文件分配项会作为最后一个项，也就是value==FileAllocationTableConstant.END
      * 并更新文件分配表的内容
      *
-     * 如果已经没有空闲磁盘块会返回null
-     *
-     * @return Item 文件分配表项
+     * @return 新分配的文件分配表项下标，如果已经没有空闲磁盘块会返回-1
      */
-    public Item allocateItem() {
-        Item item = getEmptyItem();
+    public int allocateItem() {
+        int index = getEmptyItem();
         // 没有空闲磁盘块
-        if (item == null) {
-            return null;
+        if (index == -1) {
+            return -1;
         }
 
         // 更新文件分配表
-        Item newItem = new Item(item.index, FileAllocationTableConstant.END);
-        updateItem(newItem);
-        return newItem;
+        updateItem(index, FileAllocationTableConstant.END);
+        return index;
     }
 
     /**
      * 随机获取一个空文件分配表项
      * 该文件分配项会插入已经分配的文件分配表项链之中
      *
-     * 如果已经没有空闲磁盘块会返回null
-     *
      * @param previous 前一个分配表下标
-     * @return Item 新分配的文件分配表项
+     * @return 新分配的文件分配表项下标，如果已经没有空闲磁盘块会返回-1
      */
-    public Item allocateItem(int previous) {
-        Item item = getEmptyItem();
+    public int allocateItem(int previous) {
+        int index = getEmptyItem();
         // 没有空闲磁盘块
-        if (item == null) {
+        if (index == -1) {
+            return -1;
+        }
+
+        // 新分配的文件分配表项接在前一项后面
+        updateItem(index, items[previous]);
+        updateItem(previous, index);
+        return index;
+    }
+
+    /**
+     * 一次分配多个空文件分配表项，并按顺序链接起来
+     * 优先分配紧跟在previous后面的连续表项，其次是第一段足够长的连续表项，最后才是分散的表项
+     * 如果previous不为-1，新分配的表项链会插入previous之后，否则最后一项的值为FileAllocationTableConstant.END
+     *
+     * @param previous 前一个分配表下标，-1表示新分配的表项链是独立的
+     * @param count 分配的表项数量
+     * @return 新分配的文件分配表项下标，按链接顺序排列，如果空闲磁盘块不足会返回null，此时不分配任何表项
+     */
+    public int[] allocateItems(int previous, int count) {
+        // 空闲磁盘块不足
+        if (count > freeCount) {
             return null;
         }
 
-        // 前一个文件分配表项
-        Item newPreviousItem = new Item(previous, item.index);
-        // 新分配的文件分配表项
-        Item newItem = new Item(item.index, getItem(previous).next);
-        // 更新文件分配表
-        updateItem(newPreviousItem);
-        updateItem(newItem);
-        return newItem;
+        int[] indexes = new int[count];
+        // 寻找足够长的连续空闲表项
+        int start = -1;
+        if (previous != -1 && nextNonEmpty(previous + 1) - (previous + 1) >= count) {
+            start = previous + 1;
+        }
+        if (start == -1) {
+            start = findEmptyRun(count);
+        }
+        if (start != -1) {
+            for (int i = 0; i < count; i++) {
+                indexes[i] = start + i;
+            }
+        }
+        // 没有足够长的连续空闲表项，按下标顺序分配分散的表项
+        else {
+            for (int i = 0, index = nextEmpty(0); i < count; i++, index = nextEmpty(index + 1)) {
+                indexes[i] = index;
+            }
+        }
+
+        // 把新分配的表项链接起来，插入previous之后
+        int next = previous == -1 ? FileAllocationTableConstant.END : items[previous];
+        for (int i = count - 1; i >= 0; i--) {
+            updateItem(indexes[i], next);
+            next = indexes[i];
+        }
+        if (previous != -1 && count > 0) {
+            updateItem(previous, next);
+        }
+        return indexes;
     }
 
     /**
@@ -118,7 +268,7 @@ public class FileAllocationTable {
      */
     public void releaseItemsStartWith(int start) {
         releaseItemsPreviousWith(start);
-        updateItem(new Item(start, 0));
+        updateItem(start, FileAllocationTableConstant.EMPTY);
     }
 
     /**
@@ -128,11 +278,20 @@ public class FileAllocationTable {
      * @param previous 被释放的文件分配表项的前一项
      */
     public void releaseItemsPreviousWith(int previous) {
-        while (getItem(previous).getNext() != -1) {
+        while (items[previous] != FileAllocationTableConstant.END) {
             releaseItem(previous);
         }
     }
 
+    /**
+     * 获取保留项数量
+     *
+     * @return 保留项数量
+     */
+    public int getReservedCount() {
+        return reservedCount;
+    }
+
     /**
      * 获取next为0的item数量
      * 即获取未分配的item数量
@@ -140,14 +299,42 @@ public class FileAllocationTable {
      * @return 未分配的item数量
      */
     public int getEmptyDiskBlock() {
-        int emptyCount = 0;
-        for (int i = FileAllocationTableConstant.NUMBER_OF_FAT_DISK_BLOCKS;
-             i < FileAllocationTableConstant.LENGTH; i++) {
-            if (getItem(i).next == FileAllocationTableConstant.EMPTY) {
-                emptyCount++;
-            }
-        }
-        return emptyCount;
+        return freeCount;
+    }
+
+    /**
+     * 是否有被修改过且还没有持久化的表项
+     *
+     * @return 是否有被修改过的表项
+     */
+    public boolean isDirty() {
+        return firstDirtyIndex != -1;
+    }
+
+    /**
+     * 获取被修改过的表项的最小下标
+     *
+     * @return 被修改过的表项的最小下标，没有被修改过的表项时为-1
+     */
+    public int getFirstDirtyIndex() {
+        return firstDirtyIndex;
+    }
+
+    /**
+     * 获取被修改过的表项的最大下标
+     *
+     * @return 被修改过的表项的最大下标，没有被修改过的表项时为-1
+     */
+    public int getLastDirtyIndex() {
+        return lastDirtyIndex;
+    }
+
+    /**
+     * 清除修改记录，在表项持久化之后调用
+     */
+    public void clearDirty() {
+        firstDirtyIndex = -1;
+        lastDirtyIndex = -1;
     }
 
     /**
@@ -156,12 +343,9 @@ public class FileAllocationTable {
      * @param previous 被释放的文件分配表项的前一项
      */
     private void releaseItem(int previous) {
-        Item previousItem = getItem(previous);
-        Item releasedItem = getItem(previousItem.next);
-        Item newPreviousItem = new Item(previous, releasedItem.next);
-        Item newReleasedItem = new Item(releasedItem.index, FileAllocationTableConstant.EMPTY);
-        updateItem(newPreviousItem);
-        updateItem(newReleasedItem);
+        int released = items[previous];
+        updateItem(previous, items[released]);
+        updateItem(released, FileAllocationTableConstant.EMPTY);
     }
 
     @Override
@@ -172,42 +356,140 @@ public class FileAllocationTable {
     }
 
     /**
-     * 随机获取一个空文件分配表项
+     * 获取下标最小的空文件分配表项
+     *
+     * @return 文件分配表项下标，如果已经没有空闲磁盘块会返回-1
+     */
+    private int getEmptyItem() {
+        for (; firstFreeWord < freeBitmap.length; firstFreeWord++) {
+            long word = freeBitmap[firstFreeWord];
+            if (word != 0) {
+                return (firstFreeWord << 6) + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 寻找第一段长度不小于count的连续空闲表项
+     *
+     * @param count 连续空闲表项的长度
+     * @return 连续空闲表项的起始下标，如果没有会返回-1
+     */
+    private int findEmptyRun(int count) {
+        for (int start = nextEmpty(0); start != -1; ) {
+            int end = nextNonEmpty(start);
+            if (end - start >= count) {
+                return start;
+            }
+            start = nextEmpty(end);
+        }
+        return -1;
+    }
+
+    /**
+     * 寻找下标不小于from的第一个空闲表项
+     *
+     * @param from 起始下标
+     * @return 空闲表项下标，如果没有会返回-1
+     */
+    private int nextEmpty(int from) {
+        if (from >= items.length) {
+            return -1;
+        }
+        int wordIndex = from >>> 6;
+        long word = freeBitmap[wordIndex] & (-1L << from);
+        while (word == 0) {
+            if (++wordIndex == freeBitmap.length) {
+                return -1;
+            }
+            word = freeBitmap[wordIndex];
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * 寻找下标不小于from的第一个非空闲表项
      *
-     * 如果已经没有空闲磁盘块会返回null
-     * @return Item 文件分配表项
-     */
-    private Item getEmptyItem() {
-        for (int i = FileAllocationTableConstant.NUMBER_OF_FAT_DISK_BLOCKS;
-             i < FileAllocationTableConstant.LENGTH; i++) {
-            if (getItem(i).next == FileAllocationTableConstant.EMPTY) {
-                return getItem(i);
+     * @param from 起始下标
+     * @return 非空闲表项下标，如果没有会返回文件分配表长度
+     */
+    private int nextNonEmpty(int from) {
+        if (from >= items.length) {
+            return items.length;
+        }
+        int wordIndex = from >>> 6;
+        long word = ~freeBitmap[wordIndex] & (-1L << from);
+        while (word == 0) {
+            if (++wordIndex == freeBitmap.length) {
+                return items.length;
             }
+            word = ~freeBitmap[wordIndex];
         }
-        return null;
+        return Math.min(items.length, (wordIndex << 6) + Long.numberOfTrailingZeros(word));
     }
 
     /**
      * 初始化文件分配表
-     * @param items 文件分配表的字节数组
+     * @param items 文件分配表项
      */
-    private void init(byte[] items) {
-        this.items = new Item[items.length];
+    private void init(int[] items) {
+        this.items = items;
+        this.freeBitmap = new long[(items.length + 63) >>> 6];
+        this.freeCount = 0;
+        this.firstFreeWord = 0;
         for (int i = 0; i < items.length; i++) {
-            this.items[i] = new Item(i, items[i]);
+            if (isEmpty(i, items[i])) {
+                freeBitmap[i >>> 6] |= 1L << i;
+                freeCount++;
+            }
+        }
+    }
+
+    /**
+     * 更新分配表的一项，同时维护空闲表项位图、计数器和修改记录
+     * @param index 分配表项下标
+     * @param next 下一项下标
+     */
+    private void updateItem(int index, int next) {
+        if (items[index] == next) {
+            return;
+        }
+        if (firstDirtyIndex == -1) {
+            firstDirtyIndex = index;
+            lastDirtyIndex = index;
+        } else {
+            firstDirtyIndex = Math.min(firstDirtyIndex, index);
+            lastDirtyIndex = Math.max(lastDirtyIndex, index);
+        }
+        boolean wasEmpty = isEmpty(index, items[index]);
+        boolean empty = isEmpty(index, next);
+        if (wasEmpty != empty) {
+            if (empty) {
+                freeBitmap[index >>> 6] |= 1L << index;
+                freeCount++;
+                firstFreeWord = Math.min(firstFreeWord, index >>> 6);
+            } else {
+                freeBitmap[index >>> 6] &= ~(1L << index);
+                freeCount--;
+            }
         }
+        items[index] = next;
     }
 
     /**
-     * 更新分配表的一项
-     * @param item 分配表项
+     * 判断一个文件分配表项是否空闲，文件分配表所占的保留项永远不是空闲的
+     * @param index 分配表项下标
+     * @param next 下一项下标
+     * @return 是否空闲
      */
-    private void updateItem(Item item) {
-        items[item.getIndex()] = item;
+    private boolean isEmpty(int index, int next) {
+        return index >= reservedCount
+                && next == FileAllocationTableConstant.EMPTY;
     }
 
     /**
-     * 文件分配表的项
+     * 文件分配表的项，只是文件分配表某一时刻的视图
      */
     static final public class Item implements Cloneable {
 
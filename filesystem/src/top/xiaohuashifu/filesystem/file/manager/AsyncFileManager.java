@@ -0,0 +1,68 @@
+package top.xiaohuashifu.filesystem.file.manager;
+
+import top.xiaohuashifu.filesystem.file.File;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 描述: 异步文件管理器接口，和FileManager的同名方法一样，只是不阻塞调用线程
+ * 操作抛出的异常会使返回的CompletableFuture异常完成，使用完毕后需要调用close()关闭
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-12 14:10
+ */
+public interface AsyncFileManager extends Closeable {
+    /**
+     * 创建一个文件
+     *
+     * @param directoryPath 文件目录路径
+     * @param fileName 文件名
+     * @param system 是否是系统文件
+     * @return 创建的文件
+     */
+    CompletableFuture<File> createFile(String directoryPath, String fileName, boolean system);
+
+    /**
+     * 删除一个文件
+     *
+     * @param path 文件路径
+     * @return 删除完成时完成
+     */
+    CompletableFuture<Void> deleteFile(String path);
+
+    /**
+     * 通过目录路径列出一个目录的所有文件
+     *
+     * @param directoryPath 目录路径
+     * @return 文件列表
+     */
+    CompletableFuture<List<File>> getFileList(String directoryPath);
+
+    /**
+     * 把内容写入文件
+     *
+     * @param path 文件路径
+     * @param content 文件内容
+     * @return 写入完成时完成
+     */
+    CompletableFuture<Void> writeFile(String path, String content);
+
+    /**
+     * 读取一个文件，使用UTF_8编码
+     *
+     * @param path 文件路径
+     * @return 文件内容
+     */
+    CompletableFuture<String> readFile(String path);
+
+    /**
+     * 关闭异步文件管理器，不再接受新的操作，已经提交的操作会继续执行
+     * 不会关闭底层的文件管理器
+     */
+    @Override
+    void close();
+
+}
@@ -0,0 +1,41 @@
+package top.xiaohuashifu.filesystem.file.manager;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 描述: 文件的字节通道，读写直接在文件的磁盘块链上进行，不需要把整个文件读入内存
+ * 除了SeekableByteChannel的方法，还提供和FileChannel一样的transferTo()和transferFrom()
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-10 16:40
+ */
+public interface FileByteChannel extends SeekableByteChannel {
+
+    /**
+     * 把文件从某个位置开始的内容传输到另一个通道，不改变该通道的位置
+     *
+     * @param position 文件内的起始位置
+     * @param count 最多传输的字节数
+     * @param target 目标通道
+     * @return 实际传输的字节数
+     * @throws IOException IO操作出错
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * 从另一个通道读取内容写入文件的某个位置，不改变该通道的位置
+     * 起始位置大于文件长度时不传输任何内容
+     *
+     * @param src 源通道
+     * @param position 文件内的起始位置
+     * @param count 最多传输的字节数
+     * @return 实际传输的字节数
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    long transferFrom(ReadableByteChannel src, long position, long count) throws IOException;
+
+}
@@ -5,6 +5,8 @@ import top.xiaohuashifu.filesystem.exception.NotFoundException;
 import top.xiaohuashifu.filesystem.file.File;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -86,6 +88,16 @@ public interface FileManager {
      */
     void writeFile(String path, String content) throws IOException;
 
+    /**
+     * 把内容追加到文件末尾，只写入最后一块磁盘块和新分配的磁盘块
+     *
+     * @param path 文件路径
+     * @param content 追加的内容
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    void appendFile(String path, String content) throws IOException;
+
     /**
      * 读取一个文件，使用UTF_8编码
      *
@@ -101,4 +113,86 @@ public interface FileManager {
      * @return Map<String, Double> 磁盘容量信息
      */
     Map<String, Double> getDiskInfo();
+
+    /**
+     * 获取文件长度，不需要打开文件
+     *
+     * @param path 文件绝对路径
+     * @return 文件长度（单位字节）
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    int getFileLength(String path) throws IOException;
+
+    /**
+     * 从文件的某个位置开始读取，只读取受影响的磁盘块
+     *
+     * @param path 文件绝对路径
+     * @param offset 文件内的位置
+     * @param buffer 目标字节数组，最多读取它的长度
+     * @return 实际读取的长度，位置不小于文件长度时返回-1
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    int read(String path, int offset, byte[] buffer) throws IOException;
+
+    /**
+     * 从文件的某个位置开始写入，只写入受影响的磁盘块，写入范围超出文件末尾时文件变长
+     *
+     * @param path 文件绝对路径
+     * @param offset 文件内的位置
+     * @param bytes 写入的字节
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    void write(String path, int offset, byte[] bytes) throws IOException;
+
+    /**
+     * 打开一个文件的字节通道，关闭通道时会关闭文件
+     * 以读模式打开的通道只能读，以写模式打开的通道可以读写，打开时不会截断文件，以追加模式打开的通道总是写到文件末尾
+     *
+     * @param path 文件绝对路径
+     * @param openMode 打开方式
+     * @return 字节通道
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    FileByteChannel newByteChannel(String path, OpenMode openMode) throws IOException;
+
+    /**
+     * 打开一个文件
+     *
+     * @param path 文件绝对路径
+     * @param openMode 打开方式
+     * @return 文件描述符
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     */
+    int open(String path, OpenMode openMode) throws IOException;
+
+    /**
+     * 关闭一个文件，以写模式打开的文件会在关闭时完成写入
+     *
+     * @param fileDescriptor 文件描述符
+     * @throws IOException IO操作出错
+     */
+    void close(int fileDescriptor) throws IOException;
+
+    /**
+     * 获取以读模式打开的文件的输入流，关闭输入流时会关闭文件
+     *
+     * @param fileDescriptor 文件描述符
+     * @return 输入流
+     * @throws IllegalOperationException 文件不是以读模式打开的
+     */
+    InputStream getInputStream(int fileDescriptor);
+
+    /**
+     * 获取以写模式或者追加模式打开的文件的输出流，关闭输出流时会关闭文件
+     *
+     * @param fileDescriptor 文件描述符
+     * @return 输出流
+     * @throws IllegalOperationException 文件是以读模式打开的
+     */
+    OutputStream getOutputStream(int fileDescriptor);
 }
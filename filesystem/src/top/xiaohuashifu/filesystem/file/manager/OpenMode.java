@@ -0,0 +1,25 @@
+package top.xiaohuashifu.filesystem.file.manager;
+
+/**
+ * 描述: 文件的打开方式
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-10 10:12
+ */
+public enum OpenMode {
+    /**
+     * 以读模式打开文件
+     */
+    READ,
+
+    /**
+     * 以写模式打开文件，会从头覆盖文件内容
+     */
+    WRITE,
+
+    /**
+     * 以追加模式打开文件，从文件末尾开始写入，只写入最后一块磁盘块和新分配的磁盘块
+     */
+    APPEND
+}
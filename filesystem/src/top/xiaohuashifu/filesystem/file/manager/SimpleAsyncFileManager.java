@@ -0,0 +1,196 @@
+package top.xiaohuashifu.filesystem.file.manager;
+
+import top.xiaohuashifu.filesystem.file.File;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述: 简单的异步文件管理器，把操作交给底层的文件管理器在其他线程执行
+ * 运行在支持虚拟线程的JVM上时每个操作一个虚拟线程，同时执行的操作数量由信号量限制，超出的操作排队等待
+ * 否则使用大小为最大并发操作数量的平台线程池，线程池本身限制了并发数量，空闲的线程会超时退出
+ * 磁盘块缓存和文件分配表使用ReentrantLock，持有时读写块设备不会固定虚拟线程
+ * 第一次加载目录时仍然在synchronized里读取磁盘，每个目录只加载一次，这时虚拟线程会短暂地固定在载体线程上
+ * 操作直接并发地交给底层的文件管理器，底层的文件管理器必须是线程安全的，例如SimpleFileManager
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-12 14:30
+ */
+public class SimpleAsyncFileManager implements AsyncFileManager {
+
+    /**
+     * 默认的最大并发操作数量
+     */
+    private static final int DEFAULT_MAX_CONCURRENCY = 256;
+
+    /**
+     * 平台线程池的空闲线程的存活时间（单位秒）
+     */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /**
+     * 底层的文件管理器
+     */
+    private final FileManager fileManager;
+
+    /**
+     * 执行操作的线程池
+     */
+    private final ExecutorService executor;
+
+    /**
+     * 使用虚拟线程时限制同时执行的操作数量，使用平台线程池时为null
+     */
+    private final Semaphore semaphore;
+
+    public SimpleAsyncFileManager(FileManager fileManager) {
+        this(fileManager, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /**
+     * 构造异步文件管理器
+     *
+     * @param fileManager 底层的文件管理器
+     * @param maxConcurrency 最大并发操作数量
+     */
+    public SimpleAsyncFileManager(FileManager fileManager, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("非法的并发数量");
+        }
+        this.fileManager = fileManager;
+        ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+        if (virtualThreadExecutor != null) {
+            this.executor = virtualThreadExecutor;
+            this.semaphore = new Semaphore(maxConcurrency);
+        } else {
+            this.executor = newPlatformThreadExecutor(maxConcurrency);
+            this.semaphore = null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<File> createFile(String directoryPath, String fileName, boolean system) {
+        return submit(() -> fileManager.createFile(directoryPath, fileName, system));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(String path) {
+        return submit(() -> {
+            fileManager.deleteFile(path);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<File>> getFileList(String directoryPath) {
+        return submit(() -> fileManager.getFileList(directoryPath));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeFile(String path, String content) {
+        return submit(() -> {
+            fileManager.writeFile(path, content);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> readFile(String path) {
+        return submit(() -> fileManager.readFile(path));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * 提交一个操作，使用虚拟线程时获得许可之后执行
+     *
+     * @param operation 操作
+     * @param <T> 操作结果的类型
+     * @return 操作结果
+     */
+    private <T> CompletableFuture<T> submit(Operation<T> operation) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                if (semaphore != null) {
+                    try {
+                        semaphore.acquire();
+                    } catch (InterruptedException e) {
+                        // 保留中断状态，线程池关闭时的中断不能丢失
+                        Thread.currentThread().interrupt();
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                }
+                try {
+                    future.complete(operation.execute());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    if (semaphore != null) {
+                        semaphore.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * 创建每个任务一个虚拟线程的线程池
+     * 虚拟线程需要JDK 21，通过反射获取
+     *
+     * @return 线程池，JVM不支持虚拟线程时返回null
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 创建平台线程池，线程数量就是最大并发操作数量，超出的操作在队列里排队
+     * 线程按需创建，空闲超时之后退出，不会一直持有最大并发操作数量个线程
+     *
+     * @param maxConcurrency 最大并发操作数量
+     * @return 线程池
+     */
+    private static ExecutorService newPlatformThreadExecutor(int maxConcurrency) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "async-file-manager-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * 可以抛出异常的操作
+     *
+     * @param <T> 操作结果的类型
+     */
+    @FunctionalInterface
+    private interface Operation<T> {
+        T execute() throws Exception;
+    }
+
+}
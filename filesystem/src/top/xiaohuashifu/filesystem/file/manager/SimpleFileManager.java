@@ -5,19 +5,40 @@ import top.xiaohuashifu.filesystem.exception.DuplicateException;
 import top.xiaohuashifu.filesystem.exception.IllegalOperationException;
 import top.xiaohuashifu.filesystem.exception.NotFoundException;
 import top.xiaohuashifu.filesystem.disk.DiskBlock;
-import top.xiaohuashifu.filesystem.disk.DiskConstant;
+import top.xiaohuashifu.filesystem.disk.DiskGeometry;
 import top.xiaohuashifu.filesystem.disk.DiskManager;
 import top.xiaohuashifu.filesystem.file.*;
-import top.xiaohuashifu.filesystem.file.allocation.FileAllocationTableConstant;
 import top.xiaohuashifu.filesystem.util.Pair;
-import top.xiaohuashifu.filesystem.util.StringUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 
 /**
  * 描述:文件管理器，提供文件操作
+ * 目录的内容在第一次访问时才从磁盘加载，挂载磁盘的时间和目录数量无关
+ * 目录可以占用一条磁盘块链，目录满了之后在链尾增加一块目录磁盘块，因此目录的文件数没有上限
+ * 目录的文件名索引只保存在内存里，加载目录时建立，空闲文件项使用位图维护，创建文件时不需要扫描目录磁盘块
+ * 每个节点记录自己的文件项所在的磁盘块和偏移量，修改和删除文件项时直接写该位置
+ * 打开的文件放在打开文件表里，通过文件描述符访问，读指针沿着磁盘块链逐块移动，不需要把整个文件读入内存
+ * 旧格式磁盘的文件长度由文件结束标志决定，写入包含文件结束标志的内容会抛出IOException，而不是截断文件
+ * 文件内容在打开之后被修改时读指针失效，继续读取会抛出IOException，写指针只记录位置，每次写入按位置定位
+ * 文件的磁盘块链会被缓存，按位置读写时直接定位到第N块磁盘块，只读写受影响的磁盘块
+ * 字节通道直接在缓冲区和磁盘块之间复制内容，不经过整个文件的字节数组
+ * 此类可以被多个线程同时使用，每个节点的读写锁保护文件内容或者目录的文件项，读文件只持有该文件的读锁
+ * 需要同时持有目录和文件的锁时，先锁目录再锁文件，分配和释放磁盘块由磁盘管理器的分配锁保护
+ * 同一个文件描述符、流或者通道不能被多个线程同时使用
  *
  * @author xhsf
  * @email 827032783@qq.com
@@ -25,15 +46,36 @@ import java.util.*;
  */
 public class SimpleFileManager implements FileManager {
 
+    /**
+     * 磁盘块链缓存的容量
+     */
+    private static final int CHAIN_CACHE_CAPACITY = 64;
+
     /**
      * 磁盘管理器
      */
     private DiskManager diskManager;
 
     /**
-     * 被打开的文件列表
+     * 磁盘几何信息，决定磁盘块大小、根目录位置和文件项格式
+     */
+    private DiskGeometry geometry;
+
+    /**
+     * 打开文件表，键是文件描述符
+     */
+    private Map<Integer, OpenedFile> openedFileTable;
+
+    /**
+     * 下一个分配的文件描述符
+     */
+    private final AtomicInteger nextFileDescriptor = new AtomicInteger();
+
+    /**
+     * 磁盘块链缓存，键是第一块磁盘块的下标，值是磁盘块链上每一块磁盘块的下标，缓存满时淘汰任意一项
+     * 磁盘块链改变时必须调用invalidateChain()，只能在持有该文件的写锁时改变
      */
-    private List<OpenedFile> openedFileList;
+    private Map<Integer, int[]> chainCache;
 
     /**
      * 目录树
@@ -46,9 +88,24 @@ public class SimpleFileManager implements FileManager {
      * @param diskManager 磁盘管理器
      */
     public SimpleFileManager(DiskManager diskManager) throws IOException {
+        this(diskManager, false);
+    }
+
+    /**
+     * 文件管理器构造器
+     *
+     * @param diskManager 磁盘管理器
+     * @param warmUp 是否在后台线程预先加载所有目录
+     */
+    public SimpleFileManager(DiskManager diskManager, boolean warmUp) throws IOException {
         this.diskManager = diskManager;
-        this.openedFileList = new ArrayList<>();
+        this.geometry = diskManager.getGeometry();
+        this.openedFileTable = new ConcurrentHashMap<>();
+        this.chainCache = new ConcurrentHashMap<>();
         init();
+        if (warmUp) {
+            directoryTree.startWarmUp();
+        }
     }
 
     /**
@@ -75,24 +132,33 @@ public class SimpleFileManager implements FileManager {
             throw new NotFoundException("目录不存在");
         }
 
-        // 判断文件名是否已经存在此目录下
-        for (DirectoryTree.Node child : directory.getChildren()) {
-            File file = child.getFile();
-            // 如果文件是目录或者文件的类型是空白
-            // 也就是只存在文件名
-            if (file.getFileAttribute().isDirectory() || StringUtils.isBlank(file.getType())) {
-                // 此文件名已经存在
-                if (directoryName.equals(file.getName())) {
-                    throw new DuplicateException("文件名已经存在");
-                }
+        Lock lock = lock(directory, true);
+        try {
+            // 判断文件名是否已经存在此目录下
+            if (directory.getChild(directoryName) != null) {
+                throw new DuplicateException("文件名已经存在");
             }
-        }
 
-        // 为目录分配一块磁盘块
-        DiskBlock newDiskBlock = diskManager.allocateDiskBlock(FileSupporter.getEmptyDirectoryDiskBlock());
-        // 初始化目录磁盘块
-        return createFile(directoryPath, directoryName, null,
-                new FileAttribute(false, system, true, true), newDiskBlock.getIndex());
+            // 在父目录里分配一个文件项
+            int slot = allocateSlot(directory);
+            // 为目录分配一块磁盘块
+            DiskBlock newDiskBlock = diskManager.allocateDiskBlock(FileSupporter.getEmptyDirectoryDiskBlock(geometry));
+            if (newDiskBlock == null) {
+                throw new IOException("磁盘空间不足");
+            }
+            try {
+                // 目录磁盘块会被频繁访问，固定在缓存中
+                diskManager.pinDiskBlock(newDiskBlock.getIndex());
+                // 初始化目录磁盘块
+                return createFile(directory, directoryName, null,
+                        new FileAttribute(false, system, true, true), newDiskBlock.getIndex(), slot);
+            } catch (IOException | RuntimeException e) {
+                releaseNewDiskBlock(newDiskBlock.getIndex(), true, e);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -120,30 +186,34 @@ public class SimpleFileManager implements FileManager {
             throw new NotFoundException("目录不存在");
         }
 
-        // 判断文件名是否已经存在此目录下
-        for (DirectoryTree.Node child : directory.getChildren()) {
-            File file = child.getFile();
-            if (file.getFileAttribute().isDirectory()) {
-                // 此文件名已经存在
-                if (fileName.equals(file.getName())) {
-                    throw new DuplicateException("文件名已经存在");
-                }
-            } else {
-                // 此文件名已经存在
-                if (fileName.equals(file.getName() + "." + file.getType())) {
-                    throw new DuplicateException("文件名已经存在");
-                }
-            }
-        }
-
         // 解析文件名
         Pair<String, String> fileName0 = FileSupporter.parseFileName(fileName);
 
-        // 为文件分配一块磁盘块
-        DiskBlock newDiskBlock = diskManager.allocateDiskBlock(new byte[] {-1});
-        // 创建文件
-        return createFile(directoryPath, fileName0.first, fileName0.second, new FileAttribute(false, system, true, false),
-                newDiskBlock.getIndex());
+        Lock lock = lock(directory, true);
+        try {
+            // 判断文件名是否已经存在此目录下
+            if (directory.getChild(fileName) != null) {
+                throw new DuplicateException("文件名已经存在");
+            }
+
+            // 在父目录里分配一个文件项
+            int slot = allocateSlot(directory);
+            // 为文件分配一块磁盘块
+            DiskBlock newDiskBlock = diskManager.allocateDiskBlock(new byte[] {-1});
+            if (newDiskBlock == null) {
+                throw new IOException("磁盘空间不足");
+            }
+            // 创建文件
+            try {
+                return createFile(directory, fileName0.first, fileName0.second,
+                        new FileAttribute(false, system, true, false), newDiskBlock.getIndex(), slot);
+            } catch (IOException | RuntimeException e) {
+                releaseNewDiskBlock(newDiskBlock.getIndex(), false, e);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -160,24 +230,45 @@ public class SimpleFileManager implements FileManager {
         if (node == null) {
             throw new NotFoundException("文件不存在");
         }
-        File file = node.getFile();
-        // 如果文件是目录，且不是空文件，不能删除
-        if (file.getFileAttribute().isDirectory() && node.getChildren().size() > 0) {
-            throw new IllegalOperationException("无法删除非空目录");
+        DirectoryTree.Node parent = node.getParent();
+        // 根目录不能删除
+        if (parent == null) {
+            throw new NotFoundException("文件不存在");
         }
-        // 在目录树里删除文件
-        directoryTree.deleteNode(path);
-        // 如果是文件，先释放掉文件内容所占的磁盘块
-        if (!file.getFileAttribute().isDirectory()) {
-            // 释放文件占用的磁盘块
-            diskManager.releaseDiskBlocksStartWith(file.getFirstDiskBlockIndex());
+        Lock parentLock = lock(parent, true);
+        try {
+            Lock lock = lock(node, true);
+            try {
+                File file = node.getFile();
+                // 如果文件是目录，且不是空文件，不能删除
+                if (file.getFileAttribute().isDirectory() && node.getChildren().size() > 0) {
+                    throw new IllegalOperationException("无法删除非空目录");
+                }
+                // 已经打开的文件不能删除
+                for (OpenedFile openedFile : openedFileTable.values()) {
+                    if (openedFile.getNode() == node) {
+                        throw new IllegalOperationException("无法删除已经打开的文件");
+                    }
+                }
+                // 在目录树里删除文件
+                directoryTree.deleteNode(parent, node.getName());
+                // 如果是目录，取消固定目录磁盘块
+                if (file.getFileAttribute().isDirectory()) {
+                    diskManager.unpinDiskBlock(file.getFirstDiskBlockIndex());
+                }
+                // 释放文件内容或者目录所占的磁盘块链，释放之前使缓存失效，磁盘块可能马上被别的文件分配
+                invalidateChain(file.getFirstDiskBlockIndex());
+                diskManager.releaseDiskBlocksStartWith(file.getFirstDiskBlockIndex());
+                // 把目录磁盘块里的此文件设置为空
+                diskManager.writeDiskBlock(new byte[] {FileConstant.EMPTY_FILE_SYMBOL}, 0, 1,
+                        node.getSlotDiskBlockIndex(), node.getSlotOffset());
+                parent.getFreeSlots().set(node.getSlot());
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            parentLock.unlock();
         }
-        // 获取父节点的磁盘块
-        DiskBlock diskBlock = diskManager.getDiskBlock(node.getParent().getFile().getFirstDiskBlockIndex());
-        // 获得此文件在目录磁盘块里的下标
-        int diskBlockIndexOfFile = FileSupporter.getDiskBlockIndexOfFile(diskBlock.getBytes(), file);
-        // 把目录磁盘块里的此文件设置为空
-        diskManager.writeDiskBlock(new byte[] {FileConstant.EMPTY_FILE_SYMBOL}, 0, 1, diskBlock.getIndex(), diskBlockIndexOfFile);
     }
 
     /**
@@ -214,11 +305,16 @@ public class SimpleFileManager implements FileManager {
         if (!node.getFile().getFileAttribute().isDirectory()) {
             throw new IllegalArgumentException("该路径不是指向一个文件夹");
         }
-        List<File> fileList = new ArrayList<>(node.getChildren().size());
-        for (DirectoryTree.Node child : node.getChildren()) {
-            fileList.add(child.getFile());
+        Lock lock = lock(node, false);
+        try {
+            List<File> fileList = new ArrayList<>(node.getChildren().size());
+            for (DirectoryTree.Node child : node.getChildren()) {
+                fileList.add(child.getFile());
+            }
+            return fileList;
+        } finally {
+            lock.unlock();
         }
-        return fileList;
     }
 
     /**
@@ -229,6 +325,8 @@ public class SimpleFileManager implements FileManager {
      * @return 更新之后的文件
      * @throws IOException IO操作出错
      * @throws NotFoundException 文件不存在
+     * @throws DuplicateException 文件名已经存在
+     * @throws IllegalArgumentException 非法文件名或者目录名
      */
     public File updateFile(String path, String newFileName) throws IOException {
         DirectoryTree.Node node = directoryTree.getNode(path);
@@ -236,28 +334,47 @@ public class SimpleFileManager implements FileManager {
         if (node == null) {
             throw new NotFoundException("文件不存在");
         }
-        File file = node.getFile();
-        // 判断文件名是否合法
-        if (file.getFileAttribute().isDirectory()) {
-            FileSupporter.legalDirectoryName(newFileName);
-        } else {
-            FileSupporter.legalFileName(newFileName);
+        DirectoryTree.Node parent = node.getParent();
+        // 根目录不能重命名
+        if (parent == null) {
+            throw new IllegalOperationException("无法重命名根目录");
+        }
+        // 非法目录名
+        if (node.getFile().getFileAttribute().isDirectory()) {
+            if (!FileSupporter.legalDirectoryName(newFileName)) {
+                throw new IllegalArgumentException("非法目录名");
+            }
+        // 非法文件名
+        } else if (!FileSupporter.legalFileName(newFileName)) {
+            throw new IllegalArgumentException("非法文件名");
         }
         // 解析文件名
         Pair<String, String> fileName = FileSupporter.parseFileName(newFileName);
-        // 获取更新后的文件
-        File file0 = new File(fileName.first, fileName.second, file.getFileAttribute(),
-                file.getFirstDiskBlockIndex(), file.getLength());
-        node.setFile(file0);
-        // 获取该文件目录的磁盘块
-        DiskBlock diskBlock = diskManager.getDiskBlock(node.getParent().getFile().getFirstDiskBlockIndex());
-        // 获取该磁盘块里该文件的起始下标
-        int diskBlockIndexOfFile = FileSupporter.getDiskBlockIndexOfFile(diskBlock.getBytes(), file);
-        // 把文件转换成字节数组
-        byte[] bytes = FileSupporter.parseFileToBytes(file0);
-        // 更新文件信息到磁盘中
-        diskManager.writeDiskBlock(bytes,0, FileConstant.SIZE_OF_FILE, diskBlock.getIndex(), diskBlockIndexOfFile);
-        return file0;
+        Lock parentLock = lock(parent, true);
+        try {
+            // 文件长度可能被同时修改，持有文件的写锁之后再读取文件
+            Lock lock = lock(node, true);
+            try {
+                // 判断新文件名是否已经存在此目录下
+                DirectoryTree.Node sibling = parent.getChild(newFileName);
+                if (sibling != null && sibling != node) {
+                    throw new DuplicateException("文件名已经存在");
+                }
+                File file = node.getFile();
+                // 获取更新后的文件
+                File file0 = new File(fileName.first, fileName.second, file.getFileAttribute(),
+                        file.getFirstDiskBlockIndex(), file.getLength());
+                // 先更新文件信息到磁盘中，写入失败时目录树保持不变
+                byte[] bytes = FileSupporter.parseFileToBytes(file0, geometry);
+                diskManager.writeDiskBlock(bytes, 0, bytes.length, node.getSlotDiskBlockIndex(), node.getSlotOffset());
+                directoryTree.renameNode(node, file0);
+                return file0;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            parentLock.unlock();
+        }
     }
 
     /**
@@ -265,12 +382,25 @@ public class SimpleFileManager implements FileManager {
      *
      * @param path 文件路径
      * @param content 文件内容
-     * @throws IOException IO操作出错
+     * @throws IOException IO操作出错，或者旧格式磁盘上内容包含文件结束标志
      */
     public void writeFile(String path, String content) throws IOException {
         writeFile(path, content.getBytes(FileConstant.ENCODING_OF_FILE));
     }
 
+    /**
+     * 把内容追加到文件末尾，只写入最后一块磁盘块和新分配的磁盘块
+     *
+     * @param path 文件路径
+     * @param content 追加的内容
+     * @throws IOException IO操作出错，磁盘空间不足，或者旧格式磁盘上内容包含文件结束标志
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     */
+    public void appendFile(String path, String content) throws IOException {
+        appendFile(path, content.getBytes(FileConstant.ENCODING_OF_FILE));
+    }
+
     /**
      * 读取一个文件，使用UTF_8编码
      *
@@ -292,46 +422,202 @@ public class SimpleFileManager implements FileManager {
         return diskManager.getDiskInfo();
     }
 
-
     /**
-     * 读取一个文件
+     * 获取文件长度，不需要打开文件
+     * 记录文件长度的磁盘直接使用文件项里的长度，否则持有读锁沿着磁盘块链找到文件结束标志
      *
      * @param path 文件绝对路径
-     * @param length 读取长度
-     * @return 读取的字节
+     * @return 文件长度（单位字节）
+     * @throws IOException IO操作出错
      * @throws NotFoundException 找不到该文件
      * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     */
+    public int getFileLength(String path) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        Lock lock = lock(node, false);
+        try {
+            return getFileLength(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从文件的某个位置开始读取，只读取受影响的磁盘块
+     *
+     * @param path 文件绝对路径
+     * @param offset 文件内的位置
+     * @param buffer 目标字节数组，最多读取它的长度
+     * @return 实际读取的长度，位置不小于文件长度时返回-1
      * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹，或者非法的文件位置
      */
-    private byte[] readFile(String path, int length) throws IOException {
-        DirectoryTree.Node node = directoryTree.getNode(path);
-        // 找不到该文件
-        if (node == null) {
-            throw new NotFoundException("找不到该文件");
+    public int read(String path, int offset, byte[] buffer) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        // 非法的文件位置
+        if (offset < 0) {
+            throw new IllegalArgumentException("非法的文件位置");
         }
-        // 该路径指向的是一个文件夹
-        if (node.getFile().getFileAttribute().isDirectory()) {
-            throw new IllegalArgumentException("该路径指向的是一个文件夹");
+        return read(node, offset, ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * 从文件的某个位置开始写入，只写入受影响的磁盘块
+     * 写入位置可以超出文件末尾，中间的空洞填充0，写入范围超出文件末尾时文件变长
+     *
+     * @param path 文件绝对路径
+     * @param offset 文件内的位置
+     * @param bytes 写入的字节
+     * @throws IOException IO操作出错，磁盘空间不足，或者旧格式磁盘上内容包含文件结束标志
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹，或者非法的文件位置
+     */
+    public void write(String path, int offset, byte[] bytes) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        // 非法的文件位置
+        if (offset < 0) {
+            throw new IllegalArgumentException("非法的文件位置");
         }
+        write(node, offset, ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 打开一个文件的字节通道，关闭通道时会关闭文件
+     * 以读模式打开的通道只能读，以写模式打开的通道可以读写，打开时不会截断文件，以追加模式打开的通道总是写到文件末尾
+     *
+     * @param path 文件绝对路径
+     * @param openMode 打开方式
+     * @return 字节通道
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     */
+    public FileByteChannel newByteChannel(String path, OpenMode openMode) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        // 通道自己维护位置，不使用读写指针
+        OpenedFile openedFile = new OpenedFile(path, node, openMode, null, null);
+        // 持有读锁时放入打开文件表，删除文件时一定能看到它
+        Lock lock = lock(node, false);
+        try {
+            int fileDescriptor = nextFileDescriptor.getAndIncrement();
+            openedFileTable.put(fileDescriptor, openedFile);
+            return new OpenedFileChannel(fileDescriptor, openedFile);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        // 获取该文件的磁盘块列表
-        List<DiskBlock> diskBlockList = diskManager.getDiskBlocksStartWith(node.getFile().getFirstDiskBlockIndex());
-        // 最后一个磁盘块的文件结束标志下标
-        int endOfFileSymbolIndex = FileSupporter.getEndOfFileSymbolIndex(
-                diskBlockList.get(diskBlockList.size() - 1).getBytes());
-        // 申请文件内容的空间
-        byte[] bytes = new byte[(diskBlockList.size() - 1) * DiskConstant.BLOCK_SIZE + endOfFileSymbolIndex];
-        for (int i = 0; i < diskBlockList.size(); i++) {
-            byte[] bytes0 = diskBlockList.get(i).getBytes();
-            // 对于最后一个磁盘块只读取到结束标志的下标处
-            if (i == diskBlockList.size() - 1) {
-                System.arraycopy(bytes0, 0, bytes, i * DiskConstant.BLOCK_SIZE,  endOfFileSymbolIndex);
+    /**
+     * 打开一个文件
+     *
+     * @param path 文件绝对路径
+     * @param openMode 打开方式
+     * @return 文件描述符
+     * @throws IOException IO操作出错
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     */
+    public int open(String path, OpenMode openMode) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+
+        // 持有读锁时放入打开文件表，删除文件时一定能看到它
+        Lock lock = lock(node, false);
+        try {
+            // 读写指针都从第一块磁盘块的开头开始
+            Pointer pointer = new Pointer(node.getFile().getFirstDiskBlockIndex(), 0);
+            OpenedFile openedFile;
+            if (openMode == OpenMode.READ) {
+                openedFile = new OpenedFile(path, node, openMode, pointer, null);
+                openedFile.setLength(getFileLength(node));
+                openedFile.setVersion(node.getVersion());
+            } else if (openMode == OpenMode.WRITE) {
+                openedFile = new OpenedFile(path, node, openMode, null, pointer);
             } else {
-                System.arraycopy(bytes0, 0, bytes, i * DiskConstant.BLOCK_SIZE, bytes0.length);
+                // 追加模式每次写入时才定位到文件末尾
+                openedFile = new OpenedFile(path, node, openMode, null, pointer);
             }
+            int fileDescriptor = nextFileDescriptor.getAndIncrement();
+            openedFileTable.put(fileDescriptor, openedFile);
+            return fileDescriptor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭一个文件，以写模式打开的文件会在关闭时把文件长度设置为写指针的位置，并释放多余的磁盘块
+     *
+     * @param fileDescriptor 文件描述符
+     * @throws IOException IO操作出错
+     * @throws IllegalArgumentException 无效的文件描述符
+     */
+    public void close(int fileDescriptor) throws IOException {
+        OpenedFile openedFile = openedFileTable.remove(fileDescriptor);
+        // 无效的文件描述符
+        if (openedFile == null) {
+            throw new IllegalArgumentException("无效的文件描述符");
         }
+        // 通道打开的文件没有写指针，不需要完成写入
+        if (openedFile.getWritePointer() != null) {
+            finishWrite(openedFile);
+        }
+    }
+
+    /**
+     * 获取以读模式打开的文件的输入流，关闭输入流时会关闭文件
+     *
+     * @param fileDescriptor 文件描述符
+     * @return 输入流
+     * @throws IllegalArgumentException 无效的文件描述符
+     * @throws IllegalOperationException 文件不是以读模式打开的
+     */
+    public InputStream getInputStream(int fileDescriptor) {
+        OpenedFile openedFile = getOpenedFile(fileDescriptor);
+        if (openedFile.getOpenMode() != OpenMode.READ) {
+            throw new IllegalOperationException("文件不是以读模式打开的");
+        }
+        return new OpenedFileInputStream(fileDescriptor, openedFile);
+    }
 
-        return bytes;
+    /**
+     * 获取以写模式或者追加模式打开的文件的输出流，关闭输出流时会关闭文件
+     *
+     * @param fileDescriptor 文件描述符
+     * @return 输出流
+     * @throws IllegalArgumentException 无效的文件描述符
+     * @throws IllegalOperationException 文件是以读模式打开的
+     */
+    public OutputStream getOutputStream(int fileDescriptor) {
+        OpenedFile openedFile = getOpenedFile(fileDescriptor);
+        if (openedFile.getOpenMode() == OpenMode.READ) {
+            throw new IllegalOperationException("文件不是以写模式打开的");
+        }
+        return new OpenedFileOutputStream(fileDescriptor, openedFile);
+    }
+
+
+    /**
+     * 读取一个文件
+     *
+     * @param path 文件绝对路径
+     * @param length 读取长度
+     * @return 读取的字节
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     * @throws IOException IO操作出错
+     */
+    private byte[] readFile(String path, int length) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        Lock lock = lock(node, false);
+        try {
+            // 申请文件内容的空间
+            byte[] bytes = new byte[getFileLength(node)];
+            readRange(getChain(node.getFile().getFirstDiskBlockIndex()), 0, ByteBuffer.wrap(bytes));
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -339,132 +625,885 @@ public class SimpleFileManager implements FileManager {
      *
      * @param path 文件路径
      * @param bytes 文件内容字节数组
-     * @throws IOException IO操作出错
+     * @throws IOException IO操作出错，或者旧格式磁盘上内容包含文件结束标志
      * @throws NotFoundException 找不到该文件夹
      * @throws IllegalArgumentException 该路径不是指向一个文件夹
      */
     private void writeFile(String path, byte[] bytes) throws IOException {
-        DirectoryTree.Node node = directoryTree.getNode(path);
-        // 找不到该文件
-        if (node == null) {
-            throw new NotFoundException("找不到该文件");
-        }
-        // 该路径指向的是一个文件夹
-        if (node.getFile().getFileAttribute().isDirectory()) {
-            throw new IllegalArgumentException("该路径指向的是一个文件夹");
+        DirectoryTree.Node node = getFileNode(path);
+        checkContent(ByteBuffer.wrap(bytes));
+        Lock lock = lock(node, true);
+        try {
+            node.incrementVersion();
+            // 如果原本的磁盘块数量不够，一次性申请剩下的磁盘块拼接在最后一块磁盘块的后面
+            int[] chain = ensureCapacity(node, bytes.length);
+            // 把字节数组的内容写入磁盘
+            writeRange(chain, 0, ByteBuffer.wrap(bytes));
+            // 设置文件长度，并释放掉多余的磁盘块
+            setFileLength(node, bytes.length);
+        } finally {
+            lock.unlock();
         }
+    }
 
-        // 获取该文件的磁盘块列表
-        List<DiskBlock> diskBlockList = diskManager.getDiskBlocksStartWith(node.getFile().getFirstDiskBlockIndex());
-        byte[] bytes0 = new byte[bytes.length + 1];
-        System.arraycopy(bytes, 0, bytes0, 0, bytes.length);
-        // 设置文件结束标识符
-        bytes0[bytes0.length - 1] = FileConstant.END_OF_FILE;
-        // 需要使用的磁盘块数量
-        int numberOfDiskBlocks = (int) Math.ceil((double)bytes0.length / DiskConstant.BLOCK_SIZE);
-        // 把字节数组的内容写入磁盘
-        for (int i = 0, lastDiskBlockIndex = diskBlockList.get(0).getIndex(); i < numberOfDiskBlocks; i++) {
-            DiskBlock diskBlock;
-            // 如果原本的磁盘块数量还有剩余，直接写到原本的磁盘块里
-            if (diskBlockList.size() > i) {
-                diskBlock = diskBlockList.get(i);
-                lastDiskBlockIndex = diskBlock.getIndex();
-            }
-            // 否则申请一块磁盘块拼接在上一块磁盘块的后面
-            else {
-                diskBlock = diskManager.allocateDiskBlockPreviousWith(lastDiskBlockIndex);
-                lastDiskBlockIndex = diskBlock.getIndex();
-            }
-            // 最后一个磁盘块，只写一部分字节
-            if (i + 1 == numberOfDiskBlocks) {
-                diskManager.writeDiskBlock(bytes0, i * DiskConstant.BLOCK_SIZE,
-                        bytes0.length % DiskConstant.BLOCK_SIZE, diskBlock.getIndex(), 0);
-            } else {
-                diskManager.writeDiskBlock(bytes0, i * DiskConstant.BLOCK_SIZE, DiskConstant.BLOCK_SIZE,
-                        diskBlock.getIndex(), 0);
+    /**
+     * 把字节数组追加到文件末尾，新分配的磁盘块在一次批量更新里持久化到文件分配表
+     *
+     * @param path 文件路径
+     * @param bytes 追加的字节数组
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private void appendFile(String path, byte[] bytes) throws IOException {
+        DirectoryTree.Node node = getFileNode(path);
+        // 读取文件长度和写入之间文件长度不能改变
+        Lock lock = lock(node, true);
+        diskManager.beginBatch();
+        try {
+            write(node, getFileLength(node), ByteBuffer.wrap(bytes));
+        } finally {
+            try {
+                diskManager.endBatch();
+            } finally {
+                lock.unlock();
             }
         }
-        // 如果原来的磁盘块数量大于所需要的磁盘块数量且原来的磁盘块数量大于0，释放掉多余的磁盘块
-        if (diskBlockList.size() > numberOfDiskBlocks && diskBlockList.size() > 0) {
-            diskManager.releaseDiskBlocksPreviousWith(diskBlockList.get(numberOfDiskBlocks - 1).getIndex());
-        }
     }
 
     /**
-     * 创建一个文件，会为文件分配一块磁盘块，会添加到磁盘里，并更新文件树
+     * 创建一个文件，会添加到磁盘里，并更新文件树，调用者需要持有目录的写锁
+     * 节点在初始化完成之后才加入目录树，其它线程不会看到没有文件项位置的节点
      *
-     * @param directoryPath 文件的文件夹
+     * @param directory 文件的文件夹
      * @param name 文件名
      * @param type 文件类型
      * @param fileAttribute 文件属性
      * @param firstDiskBlockIndex 第一块磁盘块的下标
+     * @param slot 父目录里分配给该文件的文件项
      * @return File 新创建的文件
      * @throws IOException IO操作出错
      */
-    private File createFile(String directoryPath, String name, String type, FileAttribute fileAttribute,
-                            int firstDiskBlockIndex) throws IOException {
+    private File createFile(DirectoryTree.Node directory, String name, String type, FileAttribute fileAttribute,
+                            int firstDiskBlockIndex, int slot) throws IOException {
         // 新建一个文件
-        File file = new File(name, type, fileAttribute, firstDiskBlockIndex, fileAttribute.isDirectory() ? 0 : 1);
-
-        // 添加节点
-        DirectoryTree.Node parent = directoryTree.addNode(directoryPath, file);
-        int parentFirstDiskBlockIndex = parent.getFile().getFirstDiskBlockIndex();
-        // 获取父节点的磁盘块
-        DiskBlock diskBlock = diskManager.getDiskBlock(parentFirstDiskBlockIndex);
-        int emptySpaceIndex = FileSupporter.findEmptySpaceOfDiskBlock(diskBlock.getBytes(), FileConstant.SIZE_OF_FILE,
-                FileConstant.EMPTY_FILE_SYMBOL);
-        // 把文件转换成字节数组
-        byte[] bytes = FileSupporter.parseFileToBytes(file);
+        // 记录文件长度的磁盘上新文件的长度是0
+        int length = fileAttribute.isDirectory() || geometry.hasFileLength() ? 0 : 1;
+        File file = new File(name, type, fileAttribute, firstDiskBlockIndex, length);
+
+        // 新建节点，并记录文件项的位置
+        DirectoryTree.Node node = directoryTree.newNode(directory, file);
+        int[] chain = getChain(directory.getFile().getFirstDiskBlockIndex());
+        int fileNumberOfDiskBlock = geometry.getFileNumberOfDiskBlock();
+        node.setSlot(slot, chain[slot / fileNumberOfDiskBlock], slot % fileNumberOfDiskBlock * geometry.getSizeOfFile());
+        // 新目录只有一块空的目录磁盘块
+        if (fileAttribute.isDirectory()) {
+            BitSet freeSlots = new BitSet();
+            freeSlots.set(0, fileNumberOfDiskBlock);
+            node.setSlots(fileNumberOfDiskBlock, freeSlots);
+        }
         // 更新文件信息到磁盘中
-        diskManager.writeDiskBlock(bytes,0, FileConstant.SIZE_OF_FILE, parentFirstDiskBlockIndex, emptySpaceIndex);
+        byte[] bytes = FileSupporter.parseFileToBytes(file, geometry);
+        diskManager.writeDiskBlock(bytes, 0, bytes.length, node.getSlotDiskBlockIndex(), node.getSlotOffset());
+        directory.getFreeSlots().clear(slot);
+        directoryTree.addNode(directory, node);
         return file;
     }
 
     /**
-     * 文件管理器初始化方法
+     * 创建文件失败时释放刚分配给它的磁盘块，目录的磁盘块先取消固定
+     * 释放时出错不覆盖原来的异常，只附加到原来的异常上
+     *
+     * @param index 磁盘块下标
+     * @param pinned 磁盘块是否被固定在缓存中
+     * @param cause 创建文件时的异常
+     */
+    private void releaseNewDiskBlock(int index, boolean pinned, Exception cause) {
+        try {
+            if (pinned) {
+                diskManager.unpinDiskBlock(index);
+            }
+            diskManager.releaseDiskBlocksStartWith(index);
+        } catch (IOException | RuntimeException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * 在目录里分配一个空的文件项，目录已满时在目录磁盘块链的末尾增加一块空的目录磁盘块
+     * 分配的文件项在写入文件之前仍然是空闲的，调用者需要持有目录的写锁
+     *
+     * @param directory 目录
+     * @return 文件项在目录里的序号
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private int allocateSlot(DirectoryTree.Node directory) throws IOException {
+        // 确保目录已经加载
+        directory.getChildren();
+        int slot = directory.getFreeSlots().nextSetBit(0);
+        if (slot != -1) {
+            return slot;
+        }
+
+        // 目录已满，增加一块目录磁盘块
+        int[] chain = getChain(directory.getFile().getFirstDiskBlockIndex());
+        int[] newDiskBlockIndexes = diskManager.allocateDiskBlocksPreviousWith(chain[chain.length - 1], 1);
+        if (newDiskBlockIndexes == null) {
+            throw new IOException("磁盘空间不足");
+        }
+        invalidateChain(directory.getFile().getFirstDiskBlockIndex());
+        byte[] bytes = FileSupporter.getEmptyDirectoryDiskBlock(geometry);
+        diskManager.writeDiskBlock(bytes, 0, bytes.length, newDiskBlockIndexes[0], 0);
+        slot = directory.getSlotCount();
+        directory.getFreeSlots().set(slot, slot + geometry.getFileNumberOfDiskBlock());
+        directory.setSlots(slot + geometry.getFileNumberOfDiskBlock(), directory.getFreeSlots());
+        return slot;
+    }
+
+    /**
+     * 文件管理器初始化方法，只读取根目录磁盘块，其他目录在第一次访问时才加载
      */
     private void init() throws IOException {
         // 读取根目录磁盘块
-        DiskBlock rootDiskBlock = diskManager.getDiskBlock(FileConstant.DISK_BLOCK_NUMBER_OF_ROOT_DIRECTORY);
+        DiskBlock rootDiskBlock = diskManager.getDiskBlock(geometry.getRootDirectoryBlock());
         // 解析成文件列表
-        List<File> children = FileSupporter.parseDiskBlockToFileList(rootDiskBlock);
+        List<File> children = FileSupporter.parseDiskBlockToFileList(rootDiskBlock, geometry);
         // 新建根目录文件
         File root = new File("/", "", new FileAttribute(false, true, true, true),
-                FileConstant.DISK_BLOCK_NUMBER_OF_ROOT_DIRECTORY, children.size());
-        // 设置根节点
-        directoryTree = new DirectoryTree(root);
-
-        // 从根节点递归初始化
-        initDirectory(directoryTree.getRoot());
+                geometry.getRootDirectoryBlock(), children.size());
+        // 设置根节点，目录磁盘块链可以增长，目录的文件数没有上限
+        directoryTree = new DirectoryTree(root, Integer.MAX_VALUE,
+                DirectoryTree.DEFAULT_PATH_CACHE_CAPACITY, this::loadDirectory);
     }
 
     /**
-     * 初始化目录，递归调用
+     * 加载一个目录，由目录树在第一次访问该目录的子节点时调用
      *
      * @param directory 目录
+     * @return 目录下的子节点列表
+     * @throws IOException IO操作出错
+     */
+    private List<DirectoryTree.Node> loadDirectory(DirectoryTree.Node directory) throws IOException {
+        int index = directory.getFile().getFirstDiskBlockIndex();
+        // 目录的第一块磁盘块会被频繁访问，固定在缓存中
+        diskManager.pinDiskBlock(index);
+        // 把目录磁盘块链解析成子节点列表，同时记录每个文件项的位置和空闲的文件项
+        int[] chain = diskManager.getDiskBlockChain(index);
+        int fileNumberOfDiskBlock = geometry.getFileNumberOfDiskBlock();
+        BitSet freeSlots = new BitSet(chain.length * fileNumberOfDiskBlock);
+        List<DirectoryTree.Node> children = new ArrayList<>();
+        for (int i = 0; i < chain.length; i++) {
+            byte[] bytes = diskManager.getDiskBlock(chain[i]).getBytes();
+            for (int j = 0; j < fileNumberOfDiskBlock; j++) {
+                int offset = j * geometry.getSizeOfFile();
+                // 空文件
+                if (bytes[offset] == FileConstant.EMPTY_FILE_SYMBOL) {
+                    freeSlots.set(i * fileNumberOfDiskBlock + j);
+                } else {
+                    File file = FileSupporter.createFileByBytes(bytes, offset, geometry);
+                    DirectoryTree.Node child = new DirectoryTree.Node(directory,
+                            file.getFileAttribute().isDirectory() ? new ArrayList<>() : null, file);
+                    child.setSlot(i * fileNumberOfDiskBlock + j, chain[i], offset);
+                    children.add(child);
+                }
+            }
+        }
+        directory.setSlots(chain.length * fileNumberOfDiskBlock, freeSlots);
+        return children;
+    }
+
+    /**
+     * 获取文件节点
+     *
+     * @param path 文件绝对路径
+     * @return 文件节点
+     * @throws NotFoundException 找不到该文件
+     * @throws IllegalArgumentException 该路径指向的是一个文件夹
+     */
+    private DirectoryTree.Node getFileNode(String path) {
+        DirectoryTree.Node node = directoryTree.getNode(path);
+        // 找不到该文件
+        if (node == null) {
+            throw new NotFoundException("找不到该文件");
+        }
+        // 该路径指向的是一个文件夹
+        if (node.getFile().getFileAttribute().isDirectory()) {
+            throw new IllegalArgumentException("该路径指向的是一个文件夹");
+        }
+        return node;
+    }
+
+    /**
+     * 锁住一个节点，节点在等待锁的时候可能已经被删除
+     *
+     * @param node 节点
+     * @param write 是否加写锁，否则加读锁
+     * @return 已经持有的锁
+     * @throws NotFoundException 节点已经被删除
+     */
+    private Lock lock(DirectoryTree.Node node, boolean write) {
+        Lock lock = write ? node.getLock().writeLock() : node.getLock().readLock();
+        lock.lock();
+        if (node.isDeleted()) {
+            lock.unlock();
+            throw new NotFoundException("找不到该文件");
+        }
+        return lock;
+    }
+
+    /**
+     * 获取文件长度，记录文件长度的磁盘直接使用文件项里的长度
+     * 否则文件长度由最后一块磁盘块里的文件结束标志决定，调用者需要持有文件的锁
+     *
+     * @param node 文件节点
+     * @return 文件长度（单位字节）
+     * @throws IOException IO操作出错
+     */
+    private int getFileLength(DirectoryTree.Node node) throws IOException {
+        if (geometry.hasFileLength()) {
+            return node.getFile().getLength();
+        }
+        int[] chain = getChain(node.getFile().getFirstDiskBlockIndex());
+        byte[] lastDiskBlock = diskManager.getDiskBlock(chain[chain.length - 1]).getBytes();
+        int endOfFileSymbolIndex = FileSupporter.getEndOfFileSymbolIndex(lastDiskBlock);
+        // 没有文件结束标志时最后一块磁盘块是满的
+        if (endOfFileSymbolIndex == -1) {
+            endOfFileSymbolIndex = lastDiskBlock.length;
+        }
+        return (chain.length - 1) * geometry.getBlockSize() + endOfFileSymbolIndex;
+    }
+
+    /**
+     * 设置文件长度，并释放多余的磁盘块
+     * 记录文件长度的磁盘更新文件项里的长度，否则在文件末尾写入文件结束标志，调用者需要持有文件的写锁
+     *
+     * @param node 文件节点
+     * @param length 文件长度（单位字节）
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private void setFileLength(DirectoryTree.Node node, int length) throws IOException {
+        node.incrementVersion();
+        int[] chain = ensureCapacity(node, length);
+        File file = node.getFile();
+        if (!geometry.hasFileLength()) {
+            // 设置文件结束标识符
+            diskManager.writeDiskBlock(new byte[] {FileConstant.END_OF_FILE}, 0, 1,
+                    chain[length / geometry.getBlockSize()], length % geometry.getBlockSize());
+        } else if (file.getLength() != length) {
+            // 更新文件项里的文件长度
+            File file0 = new File(file.getName(), file.getType(), file.getFileAttribute(),
+                    file.getFirstDiskBlockIndex(), length);
+            node.setFile(file0);
+            byte[] bytes = FileSupporter.parseFileToBytes(file0, geometry);
+            diskManager.writeDiskBlock(bytes, 0, bytes.length, node.getSlotDiskBlockIndex(), node.getSlotOffset());
+        }
+        // 如果原来的磁盘块数量大于所需要的磁盘块数量，释放掉多余的磁盘块
+        int numberOfDiskBlocks = getNumberOfDiskBlocks(length);
+        if (chain.length > numberOfDiskBlocks) {
+            invalidateChain(node.getFile().getFirstDiskBlockIndex());
+            diskManager.releaseDiskBlocksPreviousWith(chain[numberOfDiskBlocks - 1]);
+        }
+    }
+
+    /**
+     * 检查要写入的内容，旧格式磁盘上第一个文件结束标志就是文件末尾，内容里的文件结束标志会截断文件
+     * 不消耗缓冲区的内容
+     *
+     * @param src 要写入的内容
+     * @throws IOException 旧格式磁盘上内容包含文件结束标志
+     */
+    private void checkContent(ByteBuffer src) throws IOException {
+        if (geometry.hasFileLength()) {
+            return;
+        }
+        for (int i = src.position(); i < src.limit(); i++) {
+            if (src.get(i) == FileConstant.END_OF_FILE) {
+                throw new IOException("旧格式磁盘的文件内容不能包含文件结束标志");
+            }
+        }
+    }
+
+    /**
+     * 获取存放一定长度的文件所需要的磁盘块数量，至少一块
+     * 不记录文件长度的磁盘上文件结束标志也要占用一个字节
+     *
+     * @param length 文件长度（单位字节）
+     * @return 磁盘块数量
+     */
+    private int getNumberOfDiskBlocks(int length) {
+        int blockSize = geometry.getBlockSize();
+        if (geometry.hasFileLength()) {
+            return Math.max(1, (length + blockSize - 1) / blockSize);
+        }
+        return length / blockSize + 1;
+    }
+
+    /**
+     * 保证文件的磁盘块链能存放一定长度的内容，不够时一次性申请剩下的磁盘块拼接在最后一块磁盘块的后面
+     * 调用者需要持有文件的写锁
+     *
+     * @param node 文件节点
+     * @param length 文件长度（单位字节）
+     * @return 文件的磁盘块链
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private int[] ensureCapacity(DirectoryTree.Node node, int length) throws IOException {
+        int firstDiskBlockIndex = node.getFile().getFirstDiskBlockIndex();
+        int[] chain = getChain(firstDiskBlockIndex);
+        int numberOfDiskBlocks = getNumberOfDiskBlocks(length);
+        if (numberOfDiskBlocks <= chain.length) {
+            return chain;
+        }
+        int[] newDiskBlockIndexes = diskManager.allocateDiskBlocksPreviousWith(chain[chain.length - 1],
+                numberOfDiskBlocks - chain.length);
+        if (newDiskBlockIndexes == null) {
+            throw new IOException("磁盘空间不足");
+        }
+        int[] newChain = Arrays.copyOf(chain, numberOfDiskBlocks);
+        System.arraycopy(newDiskBlockIndexes, 0, newChain, chain.length, newDiskBlockIndexes.length);
+        putChain(firstDiskBlockIndex, newChain);
+        return newChain;
+    }
+
+    /**
+     * 获取磁盘块链，优先从磁盘块链缓存获取，返回的数组不能修改，调用者需要持有文件的锁
+     *
+     * @param firstDiskBlockIndex 第一块磁盘块的下标
+     * @return 磁盘块链上每一块磁盘块的下标
+     */
+    private int[] getChain(int firstDiskBlockIndex) {
+        int[] chain = chainCache.get(firstDiskBlockIndex);
+        if (chain == null) {
+            chain = diskManager.getDiskBlockChain(firstDiskBlockIndex);
+            putChain(firstDiskBlockIndex, chain);
+        }
+        return chain;
+    }
+
+    /**
+     * 把磁盘块链放入磁盘块链缓存，缓存满时淘汰任意一项
+     *
+     * @param firstDiskBlockIndex 第一块磁盘块的下标
+     * @param chain 磁盘块链
+     */
+    private void putChain(int firstDiskBlockIndex, int[] chain) {
+        if (chainCache.size() >= CHAIN_CACHE_CAPACITY) {
+            Iterator<Integer> iterator = chainCache.keySet().iterator();
+            if (iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        chainCache.put(firstDiskBlockIndex, chain);
+    }
+
+    /**
+     * 使磁盘块链缓存失效，在磁盘块链改变之后调用
+     *
+     * @param firstDiskBlockIndex 第一块磁盘块的下标
+     */
+    private void invalidateChain(int firstDiskBlockIndex) {
+        chainCache.remove(firstDiskBlockIndex);
+    }
+
+    /**
+     * 从文件的某个位置开始读取到缓冲区，最多读取缓冲区的剩余长度，读取时持有文件的读锁
+     *
+     * @param node 文件节点
+     * @param position 文件内的位置
+     * @param dst 目标缓冲区
+     * @return 实际读取的长度，位置不小于文件长度时返回-1
      * @throws IOException IO操作出错
      */
-    private void initDirectory(DirectoryTree.Node directory) throws IOException {
-        // 把目录的所有节点添加到目录里
-        // 拿到此文件的磁盘块
-        DiskBlock diskBlock = diskManager.getDiskBlock(directory.getFile().getFirstDiskBlockIndex());
-        // 把此磁盘块解析成文件列表
-        List<File> children = FileSupporter.parseDiskBlockToFileList(diskBlock);
-        // 添加此目录下的所有子节点
-        for (File child : children) {
-            // 如果子节点是目录，把子节点添加到目录里，再递归调用初始化子目录
-            if (child.getFileAttribute().isDirectory()) {
-                DirectoryTree.Node node = new DirectoryTree.Node(directory, new ArrayList<>(), child);
-                // 先把该子节点文件添加到目录里
-                directoryTree.addNode(directory, node);
-                // 再递归调用此方法初始化子节点
-                initDirectory(node);
+    private int read(DirectoryTree.Node node, long position, ByteBuffer dst) throws IOException {
+        Lock lock = lock(node, false);
+        try {
+            int length = getFileLength(node);
+            if (position >= length) {
+                return dst.hasRemaining() ? -1 : 0;
+            }
+            int n = (int) Math.min(dst.remaining(), length - position);
+            int limit = dst.limit();
+            dst.limit(dst.position() + n);
+            try {
+                readRange(getChain(node.getFile().getFirstDiskBlockIndex()), (int) position, dst);
+            } finally {
+                dst.limit(limit);
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把缓冲区的剩余内容写入文件的某个位置，写入位置超出文件末尾时中间的空洞填充0，写入时持有文件的写锁
+     *
+     * @param node 文件节点
+     * @param position 文件内的位置
+     * @param src 源缓冲区
+     * @return 实际写入的长度
+     * @throws IOException IO操作出错，磁盘空间不足，或者旧格式磁盘上内容包含文件结束标志
+     */
+    private int write(DirectoryTree.Node node, long position, ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        // 文件长度用int表示
+        if (position + n > Integer.MAX_VALUE) {
+            throw new IOException("文件过大");
+        }
+        checkContent(src);
+        Lock lock = lock(node, true);
+        try {
+            node.incrementVersion();
+            int length = getFileLength(node);
+            int end = (int) position + n;
+            int[] chain = ensureCapacity(node, Math.max(length, end));
+            // 填充文件末尾和写入位置之间的空洞
+            if (position > length) {
+                writeRange(chain, length, ByteBuffer.allocate((int) position - length));
+            }
+            writeRange(chain, (int) position, src);
+            if (end > length) {
+                setFileLength(node, end);
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取磁盘块链上的一段内容到缓冲区，读取缓冲区的剩余长度，只读取受影响的磁盘块
+     * 物理上连续的整块磁盘块一次读取
+     *
+     * @param chain 磁盘块链
+     * @param position 内容在磁盘块链上的起始位置
+     * @param dst 目标缓冲区
+     * @throws IOException IO操作出错
+     */
+    private void readRange(int[] chain, int position, ByteBuffer dst) throws IOException {
+        int blockSize = geometry.getBlockSize();
+        while (dst.hasRemaining()) {
+            int n = position / blockSize;
+            int count = dst.remaining() / blockSize;
+            // 整块读取时，物理上连续的一段磁盘块一次读入缓冲区
+            if (position % blockSize == 0 && count > 1 && dst.hasArray()) {
+                int run = 1;
+                while (run < count && chain[n + run] == chain[n + run - 1] + 1) {
+                    run++;
+                }
+                diskManager.readDiskBlocks(chain[n], run, dst.array(), dst.arrayOffset() + dst.position());
+                diskManager.onFileRead(chain[n], chain[n + run - 1]);
+                dst.position(dst.position() + run * blockSize);
+                position += run * blockSize;
+            } else {
+                position += diskManager.readDiskBlock(dst, chain[n], position % blockSize);
+                diskManager.onFileRead(chain[n], chain[n]);
+            }
+        }
+    }
+
+    /**
+     * 把缓冲区的剩余内容写入磁盘块链上的一段位置，只写入受影响的磁盘块
+     * 从磁盘块开头写入多块时，物理上相邻的磁盘块合并写入
+     *
+     * @param chain 磁盘块链，必须足够长
+     * @param position 内容在磁盘块链上的起始位置
+     * @param src 源缓冲区
+     * @throws IOException IO操作出错
+     */
+    private void writeRange(int[] chain, int position, ByteBuffer src) throws IOException {
+        int blockSize = geometry.getBlockSize();
+        while (src.hasRemaining()) {
+            int n = position / blockSize;
+            int length = src.remaining();
+            // 从磁盘块开头写入多块时，一次提交所有磁盘块
+            if (position % blockSize == 0 && length > blockSize && src.hasArray()) {
+                int[] diskBlockIndexes = Arrays.copyOfRange(chain, n, n + (length + blockSize - 1) / blockSize);
+                diskManager.writeDiskBlocks(diskBlockIndexes, src.array(), src.arrayOffset() + src.position(), length);
+                src.position(src.limit());
+                position += length;
+            } else {
+                position += diskManager.writeDiskBlock(src, chain[n], position % blockSize);
+            }
+        }
+    }
+
+    /**
+     * 获取打开的文件
+     *
+     * @param fileDescriptor 文件描述符
+     * @return 打开的文件
+     * @throws IllegalArgumentException 无效的文件描述符
+     */
+    private OpenedFile getOpenedFile(int fileDescriptor) {
+        OpenedFile openedFile = openedFileTable.get(fileDescriptor);
+        // 无效的文件描述符
+        if (openedFile == null) {
+            throw new IllegalArgumentException("无效的文件描述符");
+        }
+        return openedFile;
+    }
+
+    /**
+     * 从读指针处读取文件，读指针沿着磁盘块链逐块移动，文件内容在打开之后被修改时抛出IOException
+     *
+     * @param openedFile 打开的文件
+     * @param bytes 目标字节数组
+     * @param offset 目标字节数组内的偏移量
+     * @param length 最多读取的长度
+     * @return 实际读取的长度，已经到达文件末尾时返回-1
+     * @throws IOException IO操作出错，或者文件在打开之后被修改
+     */
+    private int read(OpenedFile openedFile, byte[] bytes, int offset, int length) throws IOException {
+        Pointer pointer = openedFile.getReadPointer();
+        int remaining = openedFile.getLength() - pointer.getPosition();
+        // 已经到达文件末尾
+        if (remaining <= 0) {
+            return -1;
+        }
+        length = Math.min(length, remaining);
+        Lock lock = lock(openedFile.getNode(), false);
+        try {
+            // 文件内容被修改之后，读指针所在的磁盘块可能已经被释放或者分配给其它文件
+            if (openedFile.getNode().getVersion() != openedFile.getVersion()) {
+                throw new IOException("文件在打开之后被修改");
+            }
+            int count = 0;
+            while (count < length) {
+                // 当前磁盘块已经读完，移动到下一块磁盘块
+                if (pointer.getDiskBlockIndex() == geometry.getBlockSize()) {
+                    pointer.setDiskBlockNum(diskManager.getNextDiskBlockIndex(pointer.getDiskBlockNum()));
+                    pointer.setDiskBlockIndex(0);
+                }
+                int n = Math.min(length - count, geometry.getBlockSize() - pointer.getDiskBlockIndex());
+                diskManager.readDiskBlock(bytes, offset + count, n, pointer.getDiskBlockNum(),
+                        pointer.getDiskBlockIndex());
+                diskManager.onFileRead(pointer.getDiskBlockNum(), pointer.getDiskBlockNum());
+                pointer.move(n);
+                count += n;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从写指针的位置写入文件，每次写入都按位置重新定位磁盘块，文件在两次写入之间被修改也不会写到已经释放的磁盘块
+     * 追加模式每次写入之前先把写指针移到当前的文件末尾
+     *
+     * @param openedFile 打开的文件
+     * @param bytes 字节数组
+     * @param offset 字节数组内的偏移量
+     * @param length 写入长度
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private void write(OpenedFile openedFile, byte[] bytes, int offset, int length) throws IOException {
+        Pointer pointer = openedFile.getWritePointer();
+        Lock lock = lock(openedFile.getNode(), true);
+        // 一次写入新分配的磁盘块只更新一次文件分配表
+        diskManager.beginBatch();
+        try {
+            // 追加模式总是写到文件末尾，文件可能已经被其它流、通道或者appendFile()加长
+            if (openedFile.getOpenMode() == OpenMode.APPEND) {
+                pointer.setPosition(getFileLength(openedFile.getNode()));
+            }
+            write(openedFile.getNode(), pointer.getPosition(), ByteBuffer.wrap(bytes, offset, length));
+            pointer.setPosition(pointer.getPosition() + length);
+        } finally {
+            try {
+                diskManager.endBatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 完成写入，把文件长度设置为写指针的位置，并释放多余的磁盘块
+     * 追加模式的每次写入都已经加长了文件，关闭时不能截断其它追加者写入的内容
+     *
+     * @param openedFile 打开的文件
+     * @throws IOException IO操作出错，或者磁盘空间不足
+     */
+    private void finishWrite(OpenedFile openedFile) throws IOException {
+        if (openedFile.getOpenMode() == OpenMode.APPEND) {
+            return;
+        }
+        Lock lock = lock(openedFile.getNode(), true);
+        try {
+            setFileLength(openedFile.getNode(), openedFile.getWritePointer().getPosition());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 打开的文件的输入流
+     */
+    private class OpenedFileInputStream extends InputStream {
+
+        /**
+         * 文件描述符
+         */
+        private final int fileDescriptor;
+
+        /**
+         * 打开的文件
+         */
+        private final OpenedFile openedFile;
+
+        private OpenedFileInputStream(int fileDescriptor, OpenedFile openedFile) {
+            this.fileDescriptor = fileDescriptor;
+            this.openedFile = openedFile;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            return SimpleFileManager.this.read(openedFile, bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, openedFile.getLength() - openedFile.getReadPointer().getPosition());
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (openedFileTable.get(fileDescriptor) == openedFile) {
+                SimpleFileManager.this.close(fileDescriptor);
+            }
+        }
+    }
+
+    /**
+     * 打开的文件的输出流
+     */
+    private class OpenedFileOutputStream extends OutputStream {
+
+        /**
+         * 文件描述符
+         */
+        private final int fileDescriptor;
+
+        /**
+         * 打开的文件
+         */
+        private final OpenedFile openedFile;
+
+        private OpenedFileOutputStream(int fileDescriptor, OpenedFile openedFile) {
+            this.fileDescriptor = fileDescriptor;
+            this.openedFile = openedFile;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            SimpleFileManager.this.write(openedFile, bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (openedFileTable.get(fileDescriptor) == openedFile) {
+                SimpleFileManager.this.close(fileDescriptor);
+            }
+        }
+    }
+
+    /**
+     * 打开的文件的字节通道，位置由通道自己维护
+     */
+    private class OpenedFileChannel implements FileByteChannel {
+
+        /**
+         * 文件描述符
+         */
+        private final int fileDescriptor;
+
+        /**
+         * 打开的文件
+         */
+        private final OpenedFile openedFile;
+
+        /**
+         * 通道的位置
+         */
+        private long position;
+
+        private OpenedFileChannel(int fileDescriptor, OpenedFile openedFile) {
+            this.fileDescriptor = fileDescriptor;
+            this.openedFile = openedFile;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            int n = SimpleFileManager.this.read(openedFile.getNode(), position, dst);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ensureWritable();
+            // 追加模式总是写到文件末尾，读取文件长度和写入之间文件长度不能改变
+            Lock lock = lock(openedFile.getNode(), true);
+            try {
+                if (openedFile.getOpenMode() == OpenMode.APPEND) {
+                    position = getFileLength(openedFile.getNode());
+                }
+                int n = SimpleFileManager.this.write(openedFile.getNode(), position, src);
+                position += n;
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("非法的文件位置");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            Lock lock = lock(openedFile.getNode(), false);
+            try {
+                return getFileLength(openedFile.getNode());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            ensureWritable();
+            if (size < 0) {
+                throw new IllegalArgumentException("非法的文件长度");
+            }
+            Lock lock = lock(openedFile.getNode(), true);
+            try {
+                if (size < getFileLength(openedFile.getNode())) {
+                    setFileLength(openedFile.getNode(), (int) size);
+                }
+            } finally {
+                lock.unlock();
+            }
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ensureOpen();
+            if (position < 0 || count < 0) {
+                throw new IllegalArgumentException("非法的文件位置");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(geometry.getBlockSize());
+            long transferred = 0;
+            while (transferred < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+                int n = SimpleFileManager.this.read(openedFile.getNode(), position + transferred, buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    // 目标通道暂时写不进去时结束传输
+                    if (target.write(buffer) == 0) {
+                        return transferred + n - buffer.remaining();
+                    }
+                }
+                transferred += n;
+            }
+            return transferred;
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            ensureWritable();
+            if (position < 0 || count < 0) {
+                throw new IllegalArgumentException("非法的文件位置");
             }
-            // 如果子节点是普通文件，把子节点添加到目录里
-            else {
-                DirectoryTree.Node node = new DirectoryTree.Node(directory, null, child);
-                // 先把该子节点文件添加到目录里
-                directoryTree.addNode(directory, node);
+            if (position > size()) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(geometry.getBlockSize());
+            long transferred = 0;
+            while (transferred < count) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+                int n = src.read(buffer);
+                if (n <= 0) {
+                    break;
+                }
+                buffer.flip();
+                SimpleFileManager.this.write(openedFile.getNode(), position + transferred, buffer);
+                transferred += n;
+            }
+            return transferred;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return openedFileTable.get(fileDescriptor) == openedFile;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (isOpen()) {
+                SimpleFileManager.this.close(fileDescriptor);
+            }
+        }
+
+        /**
+         * 检查通道是否打开
+         *
+         * @throws ClosedChannelException 通道已经关闭
+         */
+        private void ensureOpen() throws ClosedChannelException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+
+        /**
+         * 检查通道是否可写
+         *
+         * @throws ClosedChannelException 通道已经关闭
+         * @throws NonWritableChannelException 通道是以读模式打开的
+         */
+        private void ensureWritable() throws ClosedChannelException {
+            ensureOpen();
+            if (openedFile.getOpenMode() == OpenMode.READ) {
+                throw new NonWritableChannelException();
             }
         }
     }
@@ -479,9 +1518,9 @@ public class SimpleFileManager implements FileManager {
         private String absolutePath;
 
         /**
-         * 文件
+         * 文件节点
          */
-        private File file;
+        private DirectoryTree.Node node;
 
         /**
          * 文件的打开方式
@@ -498,9 +1537,20 @@ public class SimpleFileManager implements FileManager {
          */
         private Pointer writePointer;
 
-        public OpenedFile(String absolutePath, File file, OpenMode openMode, Pointer readPointer, Pointer writePointer) {
+        /**
+         * 打开时的文件长度，用于判断读指针是否到达文件末尾
+         */
+        private int length;
+
+        /**
+         * 打开时文件内容的版本，版本改变之后读指针失效
+         */
+        private int version;
+
+        public OpenedFile(String absolutePath, DirectoryTree.Node node, OpenMode openMode, Pointer readPointer,
+                          Pointer writePointer) {
             this.absolutePath = absolutePath;
-            this.file = file;
+            this.node = node;
             this.openMode = openMode;
             this.readPointer = readPointer;
             this.writePointer = writePointer;
@@ -514,12 +1564,12 @@ public class SimpleFileManager implements FileManager {
             this.absolutePath = absolutePath;
         }
 
-        public File getFile() {
-            return file;
+        public DirectoryTree.Node getNode() {
+            return node;
         }
 
-        public void setFile(File file) {
-            this.file = file;
+        public void setNode(DirectoryTree.Node node) {
+            this.node = node;
         }
 
         public OpenMode getOpenMode() {
@@ -546,14 +1596,31 @@ public class SimpleFileManager implements FileManager {
             this.writePointer = writePointer;
         }
 
+        public int getLength() {
+            return length;
+        }
+
+        public void setLength(int length) {
+            this.length = length;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public void setVersion(int version) {
+            this.version = version;
+        }
+
         @Override
         public String toString() {
             return "OpenedFile{" +
                     "absolutePath='" + absolutePath + '\'' +
-                    ", file=" + file +
+                    ", file=" + node.getFile() +
                     ", openMode=" + openMode +
                     ", readPointer=" + readPointer +
                     ", writePointer=" + writePointer +
+                    ", length=" + length +
                     '}';
         }
     }
@@ -572,11 +1639,26 @@ public class SimpleFileManager implements FileManager {
          */
         private int diskBlockIndex;
 
+        /**
+         * 指针在文件内的位置
+         */
+        private int position;
+
         public Pointer(int diskBlockNum, int diskBlockIndex) {
             this.diskBlockNum = diskBlockNum;
             this.diskBlockIndex = diskBlockIndex;
         }
 
+        /**
+         * 在当前磁盘块内向后移动指针
+         *
+         * @param n 移动的字节数
+         */
+        public void move(int n) {
+            diskBlockIndex += n;
+            position += n;
+        }
+
         public int getDiskBlockNum() {
             return diskBlockNum;
         }
@@ -593,28 +1675,22 @@ public class SimpleFileManager implements FileManager {
             this.diskBlockIndex = diskBlockIndex;
         }
 
+        public int getPosition() {
+            return position;
+        }
+
+        public void setPosition(int position) {
+            this.position = position;
+        }
+
         @Override
         public String toString() {
             return "Pointer{" +
                     "diskBlockNum=" + diskBlockNum +
                     ", diskBlockIndex=" + diskBlockIndex +
+                    ", position=" + position +
                     '}';
         }
     }
 
-    /**
-     * 描述: 文件的打开方式
-     */
-    private enum OpenMode {
-        /**
-         * 以读模式打开文件
-         */
-        READ,
-
-        /**
-         * 以写模式打开文件
-         */
-        WRITE
-    }
-
 }
@@ -0,0 +1,75 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * 描述: 磁盘镜像里的目录流，打开时列出目录的所有文件，只能迭代一次
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 10:50
+ */
+public class DiskDirectoryStream implements DirectoryStream<Path> {
+
+    /**
+     * 目录里通过过滤器的路径
+     */
+    private final List<Path> pathList;
+
+    /**
+     * 是否已经获取过迭代器
+     */
+    private boolean iterated;
+
+    /**
+     * 是否已经关闭
+     */
+    private boolean closed;
+
+    DiskDirectoryStream(List<Path> children, Filter<? super Path> filter) throws IOException {
+        pathList = new ArrayList<>(children.size());
+        for (Path child : children) {
+            if (filter == null || filter.accept(child)) {
+                pathList.add(child);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        if (closed) {
+            throw new IllegalStateException("目录流已经关闭");
+        }
+        if (iterated) {
+            throw new IllegalStateException("目录流只能迭代一次");
+        }
+        iterated = true;
+        Iterator<Path> iterator = pathList.iterator();
+        return new Iterator<Path>() {
+            @Override
+            public boolean hasNext() {
+                return !closed && iterator.hasNext();
+            }
+
+            @Override
+            public Path next() {
+                if (closed) {
+                    throw new NoSuchElementException();
+                }
+                return iterator.next();
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+}
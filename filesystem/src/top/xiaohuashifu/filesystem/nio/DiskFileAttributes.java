@@ -0,0 +1,92 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import top.xiaohuashifu.filesystem.file.File;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * 描述: 磁盘镜像里的文件的基本属性
+ * 磁盘镜像不记录时间，所有时间都是0，文件键是文件的第一块磁盘块的下标
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 10:40
+ */
+public class DiskFileAttributes implements BasicFileAttributes {
+
+    /**
+     * 磁盘镜像不记录时间
+     */
+    private static final FileTime ZERO = FileTime.fromMillis(0);
+
+    /**
+     * 文件
+     */
+    private final File file;
+
+    /**
+     * 文件长度（单位字节）
+     */
+    private final long size;
+
+    DiskFileAttributes(File file, long size) {
+        this.file = file;
+        this.size = size;
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return ZERO;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return ZERO;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return ZERO;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return !file.getFileAttribute().isDirectory();
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return file.getFileAttribute().isDirectory();
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return file.getFirstDiskBlockIndex();
+    }
+
+    /**
+     * 获取磁盘镜像里的文件
+     *
+     * @return 文件
+     */
+    public File getFile() {
+        return file;
+    }
+
+}
@@ -0,0 +1,116 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.util.Map;
+
+/**
+ * 描述: 磁盘镜像的文件存储，容量来自磁盘管理器的磁盘容量信息
+ * 一个磁盘镜像只有一个文件存储，只支持basic文件属性视图
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 11:20
+ */
+public class DiskFileStore extends FileStore {
+
+    /**
+     * 文件存储的类型
+     */
+    private static final String TYPE = "xhfs";
+
+    /**
+     * 所属的文件系统
+     */
+    private final DiskFileSystem fileSystem;
+
+    /**
+     * 文件存储的名字，即磁盘镜像文件的路径
+     */
+    private final String name;
+
+    /**
+     * 磁盘块大小（单位字节）
+     */
+    private final int blockSize;
+
+    DiskFileStore(DiskFileSystem fileSystem, String name, int blockSize) {
+        this.fileSystem = fileSystem;
+        this.name = name;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public long getTotalSpace() throws IOException {
+        return getSpace("totalCount");
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return getSpace("remainCount");
+    }
+
+    @Override
+    public long getUnallocatedSpace() throws IOException {
+        return getSpace("remainCount");
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+        return type == BasicFileAttributeView.class;
+    }
+
+    @Override
+    public boolean supportsFileAttributeView(String name) {
+        return name.equals("basic");
+    }
+
+    @Override
+    public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+        return null;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws IOException {
+        switch (attribute) {
+            case "totalSpace":
+                return getTotalSpace();
+            case "usableSpace":
+                return getUsableSpace();
+            case "unallocatedSpace":
+                return getUnallocatedSpace();
+            default:
+                throw new UnsupportedOperationException("不支持的文件存储属性: " + attribute);
+        }
+    }
+
+    /**
+     * 把磁盘容量信息里的磁盘块数换算成字节数
+     *
+     * @param key 磁盘容量信息的键
+     * @return 字节数
+     */
+    private long getSpace(String key) {
+        Map<String, Double> diskInfo = fileSystem.getFileManager().getDiskInfo();
+        return diskInfo.get(key).longValue() * blockSize;
+    }
+
+}
@@ -0,0 +1,268 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import top.xiaohuashifu.filesystem.disk.DiskManager;
+import top.xiaohuashifu.filesystem.file.manager.FileManager;
+import top.xiaohuashifu.filesystem.file.manager.SimpleFileManager;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * 描述: 挂载为java.nio.file.FileSystem的磁盘镜像，所有操作都交给SimpleFileManager
+ * 使用完毕后需要调用close()关闭，关闭时会关闭磁盘管理器
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 11:00
+ */
+public class DiskFileSystem extends FileSystem {
+
+    /**
+     * 目录分隔符
+     */
+    private static final String SEPARATOR = "/";
+
+    /**
+     * 文件系统提供者
+     */
+    private final DiskFileSystemProvider provider;
+
+    /**
+     * 磁盘镜像文件的路径
+     */
+    private final Path image;
+
+    /**
+     * 磁盘管理器
+     */
+    private final DiskManager diskManager;
+
+    /**
+     * 文件管理器
+     */
+    private final FileManager fileManager;
+
+    /**
+     * 文件存储
+     */
+    private final DiskFileStore fileStore;
+
+    /**
+     * 是否已经打开
+     */
+    private volatile boolean open;
+
+    DiskFileSystem(DiskFileSystemProvider provider, Path image) throws IOException {
+        this.provider = provider;
+        this.image = image;
+        this.diskManager = new DiskManager(image.toFile());
+        this.fileManager = new SimpleFileManager(diskManager);
+        this.fileStore = new DiskFileStore(this, image.toString(), diskManager.getBlockSize());
+        this.open = true;
+    }
+
+    @Override
+    public DiskFileSystemProvider provider() {
+        return provider;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        provider.removeFileSystem(image);
+        diskManager.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    public String getSeparator() {
+        return SEPARATOR;
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return Collections.singletonList(new DiskPath(this, SEPARATOR));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return Collections.singletonList(fileStore);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Collections.singleton("basic");
+    }
+
+    @Override
+    public DiskPath getPath(String first, String... more) {
+        if (more.length == 0) {
+            return new DiskPath(this, first);
+        }
+        StringBuilder builder = new StringBuilder(first);
+        for (String name : more) {
+            if (!name.isEmpty()) {
+                builder.append(SEPARATOR).append(name);
+            }
+        }
+        return new DiskPath(this, builder.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int index = syntaxAndPattern.indexOf(':');
+        if (index <= 0) {
+            throw new IllegalArgumentException("非法的匹配模式");
+        }
+        String syntax = syntaxAndPattern.substring(0, index);
+        String pattern = syntaxAndPattern.substring(index + 1);
+        Pattern regex;
+        if (syntax.equalsIgnoreCase("regex")) {
+            regex = Pattern.compile(pattern);
+        } else if (syntax.equalsIgnoreCase("glob")) {
+            regex = Pattern.compile(globToRegex(pattern));
+        } else {
+            throw new UnsupportedOperationException("不支持的匹配语法: " + syntax);
+        }
+        return path -> regex.matcher(path.toString()).matches();
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("磁盘镜像没有用户");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("不支持监听文件变化");
+    }
+
+    /**
+     * 获取文件管理器
+     *
+     * @return 文件管理器
+     * @throws ClosedFileSystemException 文件系统已经关闭
+     */
+    FileManager getFileManager() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+        return fileManager;
+    }
+
+    /**
+     * 获取文件存储
+     *
+     * @return 文件存储
+     * @throws ClosedFileSystemException 文件系统已经关闭
+     */
+    DiskFileStore getFileStore() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+        return fileStore;
+    }
+
+    /**
+     * 把磁盘镜像里的绝对路径转换成URI，格式为xhfs:磁盘镜像文件的URI!绝对路径
+     *
+     * @param path 磁盘镜像里的绝对路径
+     * @return URI
+     */
+    URI toUri(String path) {
+        try {
+            return new URI(DiskFileSystemProvider.SCHEME, image.toUri().toString() + "!" + path, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 把glob模式转换成正则表达式，支持*、**、?、[...]和{...,...}
+     *
+     * @param glob glob模式
+     * @return 正则表达式
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        boolean inBracket = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    // **可以跨越目录
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        regex.append(".*");
+                        i++;
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    regex.append('[');
+                    inBracket = true;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '!') {
+                        regex.append('^');
+                        i++;
+                    }
+                    break;
+                case ']':
+                    regex.append(']');
+                    inBracket = false;
+                    break;
+                case '{':
+                    regex.append("(?:");
+                    inGroup = true;
+                    break;
+                case '}':
+                    regex.append(')');
+                    inGroup = false;
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        char next = glob.charAt(++i);
+                        regex.append(Character.isLetterOrDigit(next) ? "" : "\\").append(next);
+                    }
+                    break;
+                default:
+                    if (Character.isLetterOrDigit(c) || inBracket && c == '-') {
+                        regex.append(c);
+                    } else {
+                        regex.append('\\').append(c);
+                    }
+            }
+        }
+        return regex.toString();
+    }
+
+}
@@ -0,0 +1,521 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import top.xiaohuashifu.filesystem.exception.DuplicateException;
+import top.xiaohuashifu.filesystem.exception.IllegalOperationException;
+import top.xiaohuashifu.filesystem.exception.NotFoundException;
+import top.xiaohuashifu.filesystem.file.File;
+import top.xiaohuashifu.filesystem.file.FileSupporter;
+import top.xiaohuashifu.filesystem.file.manager.FileByteChannel;
+import top.xiaohuashifu.filesystem.file.manager.FileManager;
+import top.xiaohuashifu.filesystem.file.manager.OpenMode;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 描述: 磁盘镜像的文件系统提供者，URI的格式为xhfs:磁盘镜像文件的URI!绝对路径
+ * 通过FileSystems.newFileSystem(path)可以把扩展名为.disk的磁盘镜像挂载为文件系统
+ * 磁盘镜像的文件名最多3个字符，类型最多2个字符，不支持符号链接、时间和权限
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 11:30
+ */
+public class DiskFileSystemProvider extends FileSystemProvider {
+
+    /**
+     * URI的协议名
+     */
+    static final String SCHEME = "xhfs";
+
+    /**
+     * 磁盘镜像文件的扩展名
+     */
+    private static final String EXTENSION_OF_IMAGE = ".disk";
+
+    /**
+     * 已经挂载的文件系统，键是磁盘镜像文件的真实路径
+     */
+    private final Map<Path, DiskFileSystem> fileSystems = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        return newFileSystem(getImage(uri), env);
+    }
+
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        // 不是磁盘镜像时交给其他文件系统提供者
+        if (path.getFileName() == null || !path.getFileName().toString().endsWith(EXTENSION_OF_IMAGE)) {
+            throw new UnsupportedOperationException("不是磁盘镜像文件");
+        }
+        Path image = path.toRealPath();
+        synchronized (fileSystems) {
+            if (fileSystems.containsKey(image)) {
+                throw new FileSystemAlreadyExistsException(image.toString());
+            }
+            DiskFileSystem fileSystem = new DiskFileSystem(this, image);
+            fileSystems.put(image, fileSystem);
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        Path image;
+        try {
+            image = getImage(uri).toRealPath();
+        } catch (IOException e) {
+            throw new FileSystemNotFoundException(uri.toString());
+        }
+        synchronized (fileSystems) {
+            DiskFileSystem fileSystem = fileSystems.get(image);
+            if (fileSystem == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fileSystem;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String specific = uri.getSchemeSpecificPart();
+        int index = specific.indexOf('!');
+        return getFileSystem(uri).getPath(index == -1 ? "/" : specific.substring(index + 1));
+    }
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options,
+                                              FileAttribute<?>... attrs) throws IOException {
+        if (options.contains(StandardOpenOption.DELETE_ON_CLOSE)) {
+            throw new UnsupportedOperationException("不支持DELETE_ON_CLOSE");
+        }
+        DiskPath diskPath = toDiskPath(path);
+        FileManager fileManager = diskPath.getFileSystem().getFileManager();
+        boolean append = options.contains(StandardOpenOption.APPEND);
+        boolean write = append || options.contains(StandardOpenOption.WRITE);
+        File file = getFile(diskPath);
+        if (file != null && write && options.contains(StandardOpenOption.CREATE_NEW)) {
+            throw new FileAlreadyExistsException(diskPath.toString());
+        }
+        if (file == null) {
+            if (!write || !options.contains(StandardOpenOption.CREATE)
+                    && !options.contains(StandardOpenOption.CREATE_NEW)) {
+                throw new NoSuchFileException(diskPath.toString());
+            }
+            createFile(diskPath);
+        } else if (file.getFileAttribute().isDirectory()) {
+            throw new FileSystemException(diskPath.toString(), null, "该路径指向的是一个文件夹");
+        } else if (write && file.getFileAttribute().isReadOnly()) {
+            throw new AccessDeniedException(diskPath.toString());
+        }
+        OpenMode openMode = append ? OpenMode.APPEND : write ? OpenMode.WRITE : OpenMode.READ;
+        FileByteChannel channel = fileManager.newByteChannel(toManagerPath(diskPath), openMode);
+        if (openMode == OpenMode.WRITE && options.contains(StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.truncate(0);
+        }
+        return channel;
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+            throws IOException {
+        DiskPath diskPath = toDiskPath(dir);
+        File file = getExistingFile(diskPath);
+        if (!file.getFileAttribute().isDirectory()) {
+            throw new FileSystemException(diskPath.toString(), null, "该路径不是指向一个文件夹");
+        }
+        List<File> fileList = diskPath.getFileSystem().getFileManager().getFileList(toManagerPath(diskPath));
+        List<Path> children = new ArrayList<>(fileList.size());
+        for (File child : fileList) {
+            children.add(diskPath.resolve(FileSupporter.getFileName(child)));
+        }
+        return new DiskDirectoryStream(children, filter);
+    }
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+        DiskPath diskPath = toDiskPath(dir);
+        if (getFile(diskPath) != null) {
+            throw new FileAlreadyExistsException(diskPath.toString());
+        }
+        Path parent = getParent(diskPath);
+        try {
+            diskPath.getFileSystem().getFileManager().createDirectory(toManagerPath(parent),
+                    diskPath.getFileName().toString(), false);
+        } catch (RuntimeException e) {
+            throw translate(e, diskPath);
+        }
+    }
+
+    @Override
+    public void delete(Path path) throws IOException {
+        DiskPath diskPath = toDiskPath(path);
+        File file = getExistingFile(diskPath);
+        FileManager fileManager = diskPath.getFileSystem().getFileManager();
+        String managerPath = toManagerPath(diskPath);
+        if (file.getFileAttribute().isDirectory() && !fileManager.getFileList(managerPath).isEmpty()) {
+            throw new DirectoryNotEmptyException(diskPath.toString());
+        }
+        try {
+            fileManager.deleteFile(managerPath);
+        } catch (RuntimeException e) {
+            throw translate(e, diskPath);
+        }
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        DiskPath sourcePath = toDiskPath(source);
+        DiskPath targetPath = toDiskPath(target);
+        File file = getExistingFile(sourcePath);
+        if (sourcePath.toAbsolutePath().normalize().equals(targetPath.toAbsolutePath().normalize())) {
+            return;
+        }
+        prepareTarget(targetPath, options);
+        // 目录只复制目录本身，不复制目录里的文件
+        if (file.getFileAttribute().isDirectory()) {
+            createDirectory(targetPath);
+            return;
+        }
+        try (FileByteChannel in = (FileByteChannel) newByteChannel(sourcePath,
+                     Collections.singleton(StandardOpenOption.READ));
+             SeekableByteChannel out = newByteChannel(targetPath,
+                     new HashSet<>(Arrays.asList(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)))) {
+            in.transferTo(0, in.size(), out);
+        }
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) throws IOException {
+        DiskPath sourcePath = toDiskPath(source).toAbsolutePath();
+        DiskPath targetPath = toDiskPath(target).toAbsolutePath();
+        File file = getExistingFile(sourcePath);
+        if (sourcePath.normalize().equals(targetPath.normalize())) {
+            return;
+        }
+        // 磁盘镜像存不下的名字在删除已经存在的目标之前就拒绝
+        String targetName = targetPath.normalize().getFileName().toString();
+        if (file.getFileAttribute().isDirectory() ? !FileSupporter.legalDirectoryName(targetName)
+                : !FileSupporter.legalFileName(targetName)) {
+            throw new FileSystemException(targetPath.toString(), null, "非法文件名");
+        }
+        prepareTarget(targetPath, options);
+        // 同一个目录下的移动只需要重命名
+        Path sourceParent = sourcePath.normalize().getParent();
+        Path targetParent = targetPath.normalize().getParent();
+        if (sourceParent != null && sourceParent.equals(targetParent)) {
+            try {
+                sourcePath.getFileSystem().getFileManager().updateFile(toManagerPath(sourcePath), targetName);
+            } catch (RuntimeException e) {
+                throw translate(e, targetPath);
+            }
+            return;
+        }
+        if (file.getFileAttribute().isDirectory() && !sourcePath.getFileSystem().getFileManager()
+                .getFileList(toManagerPath(sourcePath)).isEmpty()) {
+            throw new DirectoryNotEmptyException(sourcePath.toString());
+        }
+        copy(sourcePath, targetPath);
+        delete(sourcePath);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) {
+        return toDiskPath(path).toAbsolutePath().normalize().equals(toDiskPath(path2).toAbsolutePath().normalize());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) {
+        return toDiskPath(path).getFileSystem().getFileStore();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        DiskPath diskPath = toDiskPath(path);
+        File file = getExistingFile(diskPath);
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.WRITE && file.getFileAttribute().isReadOnly()
+                    || mode == AccessMode.EXECUTE && !file.getFileAttribute().isDirectory()) {
+                throw new AccessDeniedException(diskPath.toString());
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        DiskPath diskPath = toDiskPath(path);
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return DiskFileSystemProvider.this.readAttributes(diskPath, BasicFileAttributes.class);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                // 磁盘镜像不记录时间，忽略
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+            throws IOException {
+        if (!type.isAssignableFrom(DiskFileAttributes.class)) {
+            throw new UnsupportedOperationException("不支持的文件属性: " + type.getName());
+        }
+        DiskPath diskPath = toDiskPath(path);
+        File file = getExistingFile(diskPath);
+        long size = 0;
+        // 读取长度不打开文件，不占用文件描述符
+        if (!file.getFileAttribute().isDirectory()) {
+            size = diskPath.getFileSystem().getFileManager().getFileLength(toManagerPath(diskPath));
+        }
+        return (A) new DiskFileAttributes(file, size);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options)
+            throws IOException {
+        int index = attributes.indexOf(':');
+        if (index != -1) {
+            if (!attributes.substring(0, index).equals("basic")) {
+                throw new UnsupportedOperationException("不支持的文件属性视图: " + attributes.substring(0, index));
+            }
+            attributes = attributes.substring(index + 1);
+        }
+        BasicFileAttributes fileAttributes = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> all = new HashMap<>();
+        all.put("size", fileAttributes.size());
+        all.put("isDirectory", fileAttributes.isDirectory());
+        all.put("isRegularFile", fileAttributes.isRegularFile());
+        all.put("isSymbolicLink", fileAttributes.isSymbolicLink());
+        all.put("isOther", fileAttributes.isOther());
+        all.put("lastModifiedTime", fileAttributes.lastModifiedTime());
+        all.put("lastAccessTime", fileAttributes.lastAccessTime());
+        all.put("creationTime", fileAttributes.creationTime());
+        all.put("fileKey", fileAttributes.fileKey());
+        if (attributes.equals("*")) {
+            return all;
+        }
+        Map<String, Object> map = new HashMap<>();
+        for (String name : attributes.split(",")) {
+            if (!all.containsKey(name)) {
+                throw new IllegalArgumentException("不支持的文件属性: " + name);
+            }
+            map.put(name, all.get(name));
+        }
+        return map;
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new UnsupportedOperationException("不支持设置文件属性");
+    }
+
+    /**
+     * 移除已经关闭的文件系统
+     *
+     * @param image 磁盘镜像文件的真实路径
+     */
+    void removeFileSystem(Path image) {
+        synchronized (fileSystems) {
+            fileSystems.remove(image);
+        }
+    }
+
+    /**
+     * 从URI里解析出磁盘镜像文件的路径
+     *
+     * @param uri URI，格式为xhfs:磁盘镜像文件的URI!绝对路径
+     * @return 磁盘镜像文件的路径
+     */
+    private static Path getImage(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI的协议不是" + SCHEME);
+        }
+        String specific = uri.getSchemeSpecificPart();
+        int index = specific.indexOf('!');
+        return Paths.get(URI.create(index == -1 ? specific : specific.substring(0, index)));
+    }
+
+    /**
+     * 检查路径是否是磁盘镜像里的路径
+     *
+     * @param path 路径
+     * @return 磁盘镜像里的路径
+     * @throws ProviderMismatchException 不是磁盘镜像里的路径
+     */
+    private static DiskPath toDiskPath(Path path) {
+        if (!(path instanceof DiskPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (DiskPath) path;
+    }
+
+    /**
+     * 把路径转换成文件管理器使用的规范化绝对路径
+     *
+     * @param path 路径
+     * @return 规范化绝对路径
+     */
+    private static String toManagerPath(Path path) {
+        return path.toAbsolutePath().normalize().toString();
+    }
+
+    /**
+     * 获取路径指向的文件
+     *
+     * @param path 路径
+     * @return 文件，不存在时返回null
+     */
+    private static File getFile(DiskPath path) {
+        try {
+            return path.getFileSystem().getFileManager().getFile(toManagerPath(path));
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 获取路径指向的文件
+     *
+     * @param path 路径
+     * @return 文件
+     * @throws NoSuchFileException 文件不存在
+     */
+    private static File getExistingFile(DiskPath path) throws NoSuchFileException {
+        File file = getFile(path);
+        if (file == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return file;
+    }
+
+    /**
+     * 获取路径的父目录，父目录必须存在
+     *
+     * @param path 路径
+     * @return 父目录
+     * @throws IOException 父目录不存在，或者路径是根目录
+     */
+    private static Path getParent(DiskPath path) throws IOException {
+        Path parent = path.toAbsolutePath().normalize().getParent();
+        if (parent == null) {
+            throw new FileSystemException(path.toString(), null, "根目录没有父目录");
+        }
+        File file = getFile((DiskPath) parent);
+        if (file == null || !file.getFileAttribute().isDirectory()) {
+            throw new NoSuchFileException(parent.toString());
+        }
+        return parent;
+    }
+
+    /**
+     * 在磁盘镜像里创建一个空文件
+     *
+     * @param path 文件路径
+     * @throws IOException 父目录不存在、文件名不合法或者IO操作出错
+     */
+    private static void createFile(DiskPath path) throws IOException {
+        Path parent = getParent(path);
+        try {
+            path.getFileSystem().getFileManager().createFile(toManagerPath(parent),
+                    path.getFileName().toString(), false);
+        } catch (RuntimeException e) {
+            throw translate(e, path);
+        }
+    }
+
+    /**
+     * 复制或者移动之前处理已经存在的目标文件，有REPLACE_EXISTING时删除它，否则抛出异常
+     *
+     * @param target 目标路径
+     * @param options 复制选项
+     * @throws IOException 目标文件已经存在，或者IO操作出错
+     */
+    private void prepareTarget(DiskPath target, CopyOption... options) throws IOException {
+        if (getFile(target) == null) {
+            return;
+        }
+        if (!Arrays.asList(options).contains(StandardCopyOption.REPLACE_EXISTING)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        delete(target);
+    }
+
+    /**
+     * 把文件管理器抛出的异常转换成NIO的异常
+     *
+     * @param e 文件管理器抛出的异常
+     * @param path 路径
+     * @return NIO的异常
+     */
+    private static IOException translate(RuntimeException e, Path path) {
+        if (e instanceof NotFoundException) {
+            return new NoSuchFileException(path.toString(), null, e.getMessage());
+        }
+        if (e instanceof DuplicateException) {
+            return new FileAlreadyExistsException(path.toString(), null, e.getMessage());
+        }
+        if (e instanceof IllegalOperationException || e instanceof IllegalArgumentException) {
+            return new FileSystemException(path.toString(), null, e.getMessage());
+        }
+        throw e;
+    }
+
+}
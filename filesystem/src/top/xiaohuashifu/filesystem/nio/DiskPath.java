@@ -0,0 +1,309 @@
+package top.xiaohuashifu.filesystem.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 描述: 磁盘镜像里的路径，由是否是绝对路径和每一级的名字组成，分隔符是"/"
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-11 10:20
+ */
+public class DiskPath implements Path {
+
+    /**
+     * 目录分隔符
+     */
+    private static final String SEPARATOR = "/";
+
+    /**
+     * 所属的文件系统
+     */
+    private final DiskFileSystem fileSystem;
+
+    /**
+     * 是否是绝对路径
+     */
+    private final boolean absolute;
+
+    /**
+     * 每一级的名字
+     */
+    private final String[] names;
+
+    DiskPath(DiskFileSystem fileSystem, String path) {
+        this.fileSystem = fileSystem;
+        this.absolute = path.startsWith(SEPARATOR);
+        List<String> nameList = new ArrayList<>();
+        for (String name : path.split(SEPARATOR)) {
+            if (!name.isEmpty()) {
+                nameList.add(name);
+            }
+        }
+        this.names = nameList.toArray(new String[0]);
+    }
+
+    private DiskPath(DiskFileSystem fileSystem, boolean absolute, String[] names) {
+        this.fileSystem = fileSystem;
+        this.absolute = absolute;
+        this.names = names;
+    }
+
+    @Override
+    public DiskFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return absolute;
+    }
+
+    @Override
+    public Path getRoot() {
+        return absolute ? new DiskPath(fileSystem, true, new String[0]) : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        if (names.length == 0) {
+            return absolute ? null : this;
+        }
+        return new DiskPath(fileSystem, false, new String[] {names[names.length - 1]});
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || names.length == 1 && !absolute) {
+            return null;
+        }
+        return new DiskPath(fileSystem, absolute, Arrays.copyOf(names, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("非法的下标");
+        }
+        return new DiskPath(fileSystem, false, Arrays.copyOfRange(names, beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        if (!(other instanceof DiskPath) || other.getFileSystem() != fileSystem) {
+            return false;
+        }
+        DiskPath path = (DiskPath) other;
+        if (path.absolute != absolute || path.names.length > names.length) {
+            return false;
+        }
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean startsWith(String other) {
+        return startsWith(new DiskPath(fileSystem, other));
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        if (!(other instanceof DiskPath) || other.getFileSystem() != fileSystem) {
+            return false;
+        }
+        DiskPath path = (DiskPath) other;
+        if (path.absolute) {
+            return equals(path);
+        }
+        if (path.names.length > names.length) {
+            return false;
+        }
+        int offset = names.length - path.names.length;
+        for (int i = 0; i < path.names.length; i++) {
+            if (!path.names[i].equals(names[offset + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean endsWith(String other) {
+        return endsWith(new DiskPath(fileSystem, other));
+    }
+
+    @Override
+    public Path normalize() {
+        List<String> nameList = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (name.equals(".")) {
+                continue;
+            }
+            // 绝对路径的根目录之上没有父目录
+            if (name.equals("..") && !nameList.isEmpty() && !nameList.get(nameList.size() - 1).equals("..")) {
+                nameList.remove(nameList.size() - 1);
+            } else if (!(name.equals("..") && absolute)) {
+                nameList.add(name);
+            }
+        }
+        return new DiskPath(fileSystem, absolute, nameList.toArray(new String[0]));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        DiskPath path = checkPath(other);
+        if (path.absolute) {
+            return path;
+        }
+        if (path.names.length == 0) {
+            return this;
+        }
+        String[] newNames = Arrays.copyOf(names, names.length + path.names.length);
+        System.arraycopy(path.names, 0, newNames, names.length, path.names.length);
+        return new DiskPath(fileSystem, absolute, newNames);
+    }
+
+    @Override
+    public Path resolve(String other) {
+        return resolve(new DiskPath(fileSystem, other));
+    }
+
+    @Override
+    public Path resolveSibling(Path other) {
+        Path parent = getParent();
+        return parent == null ? other : parent.resolve(other);
+    }
+
+    @Override
+    public Path resolveSibling(String other) {
+        return resolveSibling(new DiskPath(fileSystem, other));
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        DiskPath path = checkPath(other);
+        if (path.absolute != absolute) {
+            throw new IllegalArgumentException("只有同为绝对路径或者同为相对路径时才能相对化");
+        }
+        int common = 0;
+        while (common < names.length && common < path.names.length && names[common].equals(path.names[common])) {
+            common++;
+        }
+        List<String> nameList = new ArrayList<>();
+        for (int i = common; i < names.length; i++) {
+            nameList.add("..");
+        }
+        nameList.addAll(Arrays.asList(path.names).subList(common, path.names.length));
+        return new DiskPath(fileSystem, false, nameList.toArray(new String[0]));
+    }
+
+    @Override
+    public URI toUri() {
+        return fileSystem.toUri(toAbsolutePath().normalize().toString());
+    }
+
+    @Override
+    public DiskPath toAbsolutePath() {
+        return absolute ? this : new DiskPath(fileSystem, true, names);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        Path path = toAbsolutePath().normalize();
+        fileSystem.provider().checkAccess(path);
+        return path;
+    }
+
+    @Override
+    public File toFile() {
+        throw new UnsupportedOperationException("磁盘镜像里的路径不能转换成java.io.File");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("不支持监听文件变化");
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) {
+        throw new UnsupportedOperationException("不支持监听文件变化");
+    }
+
+    @Override
+    public Iterator<Path> iterator() {
+        List<Path> pathList = new ArrayList<>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            pathList.add(getName(i));
+        }
+        return pathList.iterator();
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return toString().compareTo(checkPath(other).toString());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DiskPath)) {
+            return false;
+        }
+        DiskPath path = (DiskPath) o;
+        return fileSystem == path.fileSystem && absolute == path.absolute && Arrays.equals(names, path.names);
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        String path = String.join(SEPARATOR, names);
+        return absolute ? SEPARATOR + path : path;
+    }
+
+    /**
+     * 检查另一个路径是否属于同一个文件系统
+     *
+     * @param other 另一个路径
+     * @return 转换后的路径
+     * @throws ProviderMismatchException 不是磁盘镜像里的路径
+     */
+    private DiskPath checkPath(Path other) {
+        if (!(other instanceof DiskPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (DiskPath) other;
+    }
+
+}
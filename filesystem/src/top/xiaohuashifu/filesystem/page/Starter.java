@@ -20,6 +20,11 @@ import java.util.Objects;
  */
 public class Starter extends Application {
 
+    /**
+     * 主页面的控制器
+     */
+    private Index index;
+
     /**
      * 启动方式1
      * @param primaryStage Stage
@@ -28,7 +33,8 @@ public class Starter extends Application {
     @Override
     public void start(Stage primaryStage) throws Exception {
         FXMLLoader fxmlLoader = new FXMLLoader();
-        fxmlLoader.setController(new Index());
+        index = new Index();
+        fxmlLoader.setController(index);
         Parent parent = fxmlLoader.load(Objects.requireNonNull(
                 Starter.class.getClassLoader().getResourceAsStream(
                         "top/xiaohuashifu/filesystem/page/index/index.fxml")));
@@ -39,6 +45,18 @@ public class Starter extends Application {
         primaryStage.show();
     }
 
+    /**
+     * 应用退出时关闭磁盘
+     *
+     * @throws Exception .
+     */
+    @Override
+    public void stop() throws Exception {
+        if (index != null) {
+            index.close();
+        }
+    }
+
     /**
      * 启动方式2
      *
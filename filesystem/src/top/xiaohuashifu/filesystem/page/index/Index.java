@@ -60,6 +60,11 @@ public class Index implements Initializable {
      */
     private String currentPath;
 
+    /**
+     * 磁盘管理器
+     */
+    private DiskManager diskManager;
+
     /**
      * 文件管理器
      */
@@ -77,7 +82,8 @@ public class Index implements Initializable {
     @Override
     public void initialize(URL location, ResourceBundle resources) {
         try {
-            fileManager = new SimpleFileManager(new DiskManager(DiskConstant.DISK_FILE));
+            diskManager = new DiskManager(DiskConstant.DISK_FILE);
+            fileManager = new SimpleFileManager(diskManager);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -87,6 +93,17 @@ public class Index implements Initializable {
         showDiskInfo(null);
     }
 
+    /**
+     * 关闭磁盘管理器，在应用退出时调用
+     *
+     * @throws IOException IO操作出错
+     */
+    public void close() throws IOException {
+        if (diskManager != null) {
+            diskManager.close();
+        }
+    }
+
     /**
      * 点击文件夹
      *
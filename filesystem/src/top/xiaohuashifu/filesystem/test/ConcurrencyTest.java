@@ -0,0 +1,410 @@
+package top.xiaohuashifu.filesystem.test;
+
+import top.xiaohuashifu.filesystem.disk.BlockDevice;
+import top.xiaohuashifu.filesystem.disk.DiskManager;
+import top.xiaohuashifu.filesystem.disk.HeapBlockDevice;
+import top.xiaohuashifu.filesystem.file.File;
+import top.xiaohuashifu.filesystem.file.manager.FileByteChannel;
+import top.xiaohuashifu.filesystem.file.manager.OpenMode;
+import top.xiaohuashifu.filesystem.file.manager.SimpleFileManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 描述: 多线程压力测试，在内存块设备上并发地创建、写入、追加、重命名、读取和删除文件
+ * 同时用读模式的输入流和通道读取被writeFile()和truncate()不断修改的共享文件，用追加模式的输出流并发追加记录
+ * 读到的内容要么是某一个完整的版本，要么抛出IOException，读到混合的内容或者其它文件的内容都算错误
+ * 最后删除所有文件，空闲磁盘块数量必须和开始时一样
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-13 10:20
+ */
+public class ConcurrencyTest {
+
+    /**
+     * 追加的每条记录的长度
+     */
+    private static final int RECORD_SIZE = 50;
+
+    /**
+     * 追加的文件最多的记录数量，超过时追加者等待截短
+     */
+    private static final int MAX_RECORDS = 8;
+
+    /**
+     * 并发追加的追加者数量
+     */
+    private static final int APPENDERS = 2;
+
+    /**
+     * 读写共享文件和追加文件的最短时间（单位毫秒）
+     */
+    private static final long MIN_DURATION = 1000;
+
+    /**
+     * 共享文件
+     */
+    private static final String SHARED = "/sh.t";
+
+    /**
+     * 并发追加的文件
+     */
+    private static final String APPENDED = "/ap.t";
+
+    /**
+     * 错误数量
+     */
+    private final AtomicInteger errors = new AtomicInteger();
+
+    /**
+     * 读取共享文件时因为文件被修改而抛出IOException的次数
+     */
+    private final AtomicInteger staleReads = new AtomicInteger();
+
+    /**
+     * 成功读取共享文件的次数
+     */
+    private final AtomicInteger consistentReads = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception {
+        // 记录文件长度的磁盘
+        new ConcurrencyTest().test(new HeapBlockDevice(256, 20000), 8, 300, 3000);
+        // 旧格式磁盘，只有128块，线程和文件都要少
+        new ConcurrencyTest().test(new HeapBlockDevice(64, 128), 2, 10, 600);
+    }
+
+    /**
+     * 在一个新格式化的块设备上运行压力测试
+     *
+     * @param blockDevice 块设备
+     * @param threads 并发创建和删除文件的线程数量
+     * @param filesPerThread 每个线程创建的文件数量
+     * @param sharedLength 共享文件的最大长度
+     */
+    public void test(BlockDevice blockDevice, int threads, int filesPerThread, int sharedLength) throws Exception {
+        DiskManager.format(blockDevice);
+        DiskManager diskManager = new DiskManager(blockDevice);
+        SimpleFileManager fileManager = new SimpleFileManager(diskManager);
+        fileManager.createDirectory("/", "s", false);
+        List<String> directories = new ArrayList<>();
+        directories.add("/s");
+        for (int i = 0; i < threads; i++) {
+            fileManager.createDirectory("/", "d" + i, false);
+            directories.add("/d" + i);
+        }
+        fileManager.createFile("/", "sh.t", false);
+        fileManager.createFile("/", "ap.t", false);
+        fileManager.writeFile(SHARED, fill('a', sharedLength));
+        double remainCount = diskManager.getDiskInfo().get("remainCount");
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        AtomicBoolean stop = new AtomicBoolean();
+        long start = System.currentTimeMillis();
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int id = i;
+            workers.add(executor.submit(() -> createAndDelete(fileManager, id, filesPerThread)));
+        }
+        List<Future<?>> others = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            others.add(executor.submit(() -> rewriteShared(fileManager, sharedLength, stop)));
+            others.add(executor.submit(() -> readSharedByStream(fileManager, stop)));
+            others.add(executor.submit(() -> readSharedByChannel(fileManager, sharedLength, stop)));
+        }
+        int[] appendedRecords = new int[APPENDERS];
+        for (int i = 0; i < appendedRecords.length; i++) {
+            int id = i;
+            others.add(executor.submit(() -> appendRecords(fileManager, id, appendedRecords, stop)));
+        }
+        others.add(executor.submit(() -> truncateAppended(fileManager, stop)));
+        for (Future<?> future : workers) {
+            future.get();
+        }
+        Thread.sleep(Math.max(0, start + MIN_DURATION - System.currentTimeMillis()));
+        stop.set(true);
+        for (Future<?> future : others) {
+            future.get();
+        }
+        executor.shutdown();
+        checkAppended(readAppended(fileManager));
+
+        // 删除所有文件之后恢复到开始时的样子
+        for (String directory : directories) {
+            for (File file : fileManager.getFileList(directory)) {
+                fileManager.deleteFile(directory + "/" + file.getName() + "." + file.getType());
+            }
+            fileManager.deleteFile(directory);
+            fileManager.createDirectory("/", directory.substring(1), false);
+        }
+        fileManager.writeFile(SHARED, fill('a', sharedLength));
+        fileManager.writeFile(APPENDED, "");
+        double remainCountAfterTest = diskManager.getDiskInfo().get("remainCount");
+        if (remainCountAfterTest != remainCount) {
+            error("空闲磁盘块数量从" + remainCount + "变成了" + remainCountAfterTest);
+        }
+        diskManager.close();
+
+        System.out.println(diskManager.getGeometry());
+        System.out.println("errors=" + errors.get() + " consistentReads=" + consistentReads.get()
+                + " staleReads=" + staleReads.get() + " appendedRecords=" + Arrays.toString(appendedRecords));
+        if (errors.get() > 0) {
+            throw new IllegalStateException("压力测试发现了" + errors.get() + "个错误");
+        }
+    }
+
+    /**
+     * 在自己的目录和共享目录里交替地创建、写入、追加、重命名、读取和删除文件
+     *
+     * @param fileManager 文件管理器
+     * @param id 线程编号
+     * @param count 创建的文件数量
+     */
+    private void createAndDelete(SimpleFileManager fileManager, int id, int count) {
+        Random random = new Random(id);
+        try {
+            for (int i = 0; i < count; i++) {
+                String directory = (i & 1) == 0 ? "/s" : "/d" + id;
+                String name = id + (i < 36 ? "0" : "") + Integer.toString(i, 36);
+                fileManager.createFile(directory, name + ".t", false);
+                byte[] bytes = randomBytes(random, random.nextInt(count * 16));
+                fileManager.write(directory + "/" + name + ".t", 0, bytes);
+                byte[] appended = randomBytes(random, random.nextInt(count * 2));
+                try (FileByteChannel channel = fileManager.newByteChannel(directory + "/" + name + ".t",
+                        OpenMode.APPEND)) {
+                    channel.write(ByteBuffer.wrap(appended));
+                }
+                fileManager.updateFile(directory + "/" + name + ".t", name + ".u");
+                byte[] expected = Arrays.copyOf(bytes, bytes.length + appended.length);
+                System.arraycopy(appended, 0, expected, bytes.length, appended.length);
+                byte[] actual = new byte[expected.length + 10];
+                int n = Math.max(0, fileManager.read(directory + "/" + name + ".u", 0, actual));
+                if (!Arrays.equals(expected, Arrays.copyOf(actual, n))) {
+                    error(directory + "/" + name + ".u的内容不对");
+                }
+                if (random.nextInt(3) != 0) {
+                    fileManager.deleteFile(directory + "/" + name + ".u");
+                }
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 不断地用writeFile()重写共享文件，或者用写模式的通道截短它
+     *
+     * @param fileManager 文件管理器
+     * @param maxLength 共享文件的最大长度
+     * @param stop 是否停止
+     */
+    private void rewriteShared(SimpleFileManager fileManager, int maxLength, AtomicBoolean stop) {
+        Random random = new Random();
+        try {
+            while (!stop.get()) {
+                if (random.nextBoolean()) {
+                    fileManager.writeFile(SHARED, fill((char) ('a' + random.nextInt(26)), random.nextInt(maxLength)));
+                } else {
+                    try (FileByteChannel channel = fileManager.newByteChannel(SHARED, OpenMode.WRITE)) {
+                        channel.truncate(channel.size() / 2);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 用读模式的输入流分多次读取共享文件，读完时的内容必须是同一个字母
+     *
+     * @param fileManager 文件管理器
+     * @param stop 是否停止
+     */
+    private void readSharedByStream(SimpleFileManager fileManager, AtomicBoolean stop) {
+        try {
+            while (!stop.get()) {
+                StringBuilder content = new StringBuilder();
+                try (InputStream inputStream = fileManager.getInputStream(fileManager.open(SHARED, OpenMode.READ))) {
+                    byte[] buffer = new byte[100];
+                    int n;
+                    while ((n = inputStream.read(buffer)) != -1) {
+                        content.append(new String(buffer, 0, n, "UTF-8"));
+                    }
+                } catch (IOException e) {
+                    // 文件在打开之后被修改
+                    staleReads.incrementAndGet();
+                    continue;
+                }
+                checkShared(content.toString());
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 用读模式的通道一次读取整个共享文件，一次读取看到的内容必须是同一个字母
+     *
+     * @param fileManager 文件管理器
+     * @param maxLength 共享文件的最大长度
+     * @param stop 是否停止
+     */
+    private void readSharedByChannel(SimpleFileManager fileManager, int maxLength, AtomicBoolean stop) {
+        try (FileByteChannel channel = fileManager.newByteChannel(SHARED, OpenMode.READ)) {
+            while (!stop.get()) {
+                ByteBuffer buffer = ByteBuffer.allocate(maxLength);
+                channel.position(0);
+                int n = Math.max(0, channel.read(buffer));
+                checkShared(new String(buffer.array(), 0, n, "UTF-8"));
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 用追加模式的输出流不断追加记录，每条记录是同一个字节，一次写入，文件的记录太多时等待截短
+     *
+     * @param fileManager 文件管理器
+     * @param id 追加者编号
+     * @param appendedRecords 每个追加者追加的记录数量
+     * @param stop 是否停止
+     */
+    private void appendRecords(SimpleFileManager fileManager, int id, int[] appendedRecords, AtomicBoolean stop) {
+        byte[] record = new byte[RECORD_SIZE];
+        Arrays.fill(record, (byte) ('A' + id));
+        try (OutputStream outputStream = fileManager.getOutputStream(fileManager.open(APPENDED, OpenMode.APPEND))) {
+            while (!stop.get()) {
+                if (fileManager.getFileLength(APPENDED) >= MAX_RECORDS * RECORD_SIZE) {
+                    Thread.yield();
+                    continue;
+                }
+                outputStream.write(record);
+                appendedRecords[id]++;
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 不断读取追加的文件，并把它截短到一半的记录
+     *
+     * @param fileManager 文件管理器
+     * @param stop 是否停止
+     */
+    private void truncateAppended(SimpleFileManager fileManager, AtomicBoolean stop) {
+        try {
+            while (!stop.get()) {
+                checkAppended(readAppended(fileManager));
+                try (FileByteChannel channel = fileManager.newByteChannel(APPENDED, OpenMode.WRITE)) {
+                    channel.truncate(channel.size() / RECORD_SIZE / 2 * RECORD_SIZE);
+                }
+            }
+        } catch (Exception e) {
+            error(e);
+        }
+    }
+
+    /**
+     * 一次读取整个追加的文件
+     *
+     * @param fileManager 文件管理器
+     * @return 追加的文件的内容
+     */
+    private byte[] readAppended(SimpleFileManager fileManager) throws IOException {
+        // 每个追加者在检查长度之后最多再多追加一条记录
+        byte[] bytes = new byte[(MAX_RECORDS + APPENDERS) * RECORD_SIZE];
+        int n = Math.max(0, fileManager.read(APPENDED, 0, bytes));
+        return Arrays.copyOf(bytes, n);
+    }
+
+    /**
+     * 检查共享文件的内容，必须全部是同一个小写字母
+     *
+     * @param content 共享文件的内容
+     */
+    private void checkShared(String content) {
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c != content.charAt(0) || c < 'a' || c > 'z') {
+                error("共享文件的第" + i + "个字符是" + (int) c);
+                return;
+            }
+        }
+        consistentReads.incrementAndGet();
+    }
+
+    /**
+     * 检查追加的文件的内容，必须由完整的记录组成
+     *
+     * @param bytes 追加的文件的内容
+     */
+    private void checkAppended(byte[] bytes) {
+        if (bytes.length % RECORD_SIZE != 0) {
+            error("追加的文件长度" + bytes.length + "不是记录长度的整数倍");
+            return;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[i - i % RECORD_SIZE];
+            if (bytes[i] != b || b < 'A' || b >= 'A' + APPENDERS) {
+                error("追加的文件的第" + i + "个字节是" + bytes[i]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 记录一个错误，只打印前几个错误
+     *
+     * @param message 错误信息
+     */
+    private void error(String message) {
+        if (errors.incrementAndGet() <= 10) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * 记录一个异常
+     *
+     * @param e 异常
+     */
+    private void error(Exception e) {
+        if (errors.incrementAndGet() <= 10) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        // 旧格式磁盘的文件内容不能包含文件结束标志
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] == -1) {
+                bytes[i] = 0;
+            }
+        }
+        return bytes;
+    }
+
+    private static String fill(char c, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+}
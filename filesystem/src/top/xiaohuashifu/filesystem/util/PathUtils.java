@@ -0,0 +1,69 @@
+package top.xiaohuashifu.filesystem.util;
+
+/**
+ * 描述: 路径相关工具类
+ *
+ * @author xhsf
+ * @email 827032783@qq.com
+ * @create 2019-11-09 14:20
+ */
+public class PathUtils {
+
+    /**
+     * 目录分隔符
+     */
+    private static final char SEPARATOR = '/';
+
+    /**
+     * 规范化路径，去除首尾空白、重复的分隔符和末尾的分隔符，根目录规范化为"/"
+     * 只扫描一遍路径，路径已经是规范的时直接返回原字符串
+     *
+     * @param path 路径
+     * @return 规范化的路径
+     */
+    public static String normalize(String path) {
+        path = path.trim();
+        int length = path.length();
+        // 寻找第一个需要去除的分隔符，也就是紧跟在分隔符后面的分隔符或者末尾的分隔符
+        int i = 1;
+        for (; i < length; i++) {
+            if (path.charAt(i) == SEPARATOR && (path.charAt(i - 1) == SEPARATOR || i == length - 1)) {
+                break;
+            }
+        }
+        if (i >= length) {
+            return path;
+        }
+
+        StringBuilder builder = new StringBuilder(length);
+        builder.append(path, 0, i);
+        for (; i < length; i++) {
+            char c = path.charAt(i);
+            if (c != SEPARATOR || builder.charAt(builder.length() - 1) != SEPARATOR) {
+                builder.append(c);
+            }
+        }
+        // 去除末尾的分隔符，根目录除外
+        if (builder.length() > 1 && builder.charAt(builder.length() - 1) == SEPARATOR) {
+            builder.setLength(builder.length() - 1);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 判断一个规范化的路径是否是另一个规范化的路径本身或者它的子路径
+     *
+     * @param ancestor 祖先路径
+     * @param path 路径
+     * @return 是否是本身或者子路径
+     */
+    public static boolean isSelfOrDescendant(String ancestor, String path) {
+        if (!path.startsWith(ancestor)) {
+            return false;
+        }
+        return path.length() == ancestor.length()
+                || ancestor.charAt(ancestor.length() - 1) == SEPARATOR
+                || path.charAt(ancestor.length()) == SEPARATOR;
+    }
+
+}